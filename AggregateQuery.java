@@ -0,0 +1,210 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Statistics over many stored data files at once: file N of every user, or every file of one user.
+ *
+ * The matching files are scanned by a fork/join task that splits them in halves down to a few files per task; each
+ * file is read under its read lock, from its .summary file if that is up to date, and the partial summaries are
+ * merged on the way back up (DataSummary.merge). The scan runs on its own pool of threads, sized separately from the
+ * threads that serve sessions, and only a limited number of queries run at a time. The size of the pool is the only
+ * limit on the CPU a query takes (HotSpot ignores thread priorities on Linux), so a query over thousands of files
+ * leaves the CPUs beyond it to the interactive commands; with a single CPU the scan shares it with them.
+ */
+class AggregateQuery {
+    static final long PROGRESS_INTERVAL_MILLIS = 500;
+    private static final int FILES_PER_TASK = 16;
+
+    /**
+     * A data file to aggregate, username/username-fileID.txt.
+     */
+    static final class Target {
+        final String username;
+        final String fileID;
+
+        Target(String username, String fileID) {
+            this.username = username;
+            this.fileID = fileID;
+        }
+    }
+
+    /**
+     * The merged summary of the files that were found, and how many of them were left out because they hold lines
+     * that are not integers or could not be read.
+     */
+    static final class Result {
+        final DataSummary summary;
+        int files = 0;
+        int skipped = 0;
+
+        Result() {
+            this(new DataSummary());
+        }
+
+        Result(DataSummary summary) {
+            this.summary = summary;
+        }
+
+        void merge(Result other) {
+            summary.merge(other.summary);
+            files += other.files;
+            skipped += other.skipped;
+        }
+    }
+
+    interface Progress {
+        /**
+         * Called every PROGRESS_INTERVAL_MILLIS while the query runs. Throwing cancels the query.
+         */
+        void report(int scanned, int total) throws IOException;
+    }
+
+    private final FileLocks locks;
+    private final ForkJoinPool pool;
+    private final Semaphore running;
+
+    /**
+     * @param threads threads that scan files, shared by all queries
+     * @param queries queries that may run at the same time
+     */
+    AggregateQuery(FileLocks locks, int threads, int queries) {
+        this.locks = locks;
+        running = new Semaphore(queries);
+        pool = new ForkJoinPool(threads, forkJoinPool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+            thread.setName("aggregate-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+    }
+
+    /**
+     * File N of every user directory. Whether the file exists is only checked by the scan, so listing stays one
+     * directory read however many users there are.
+     */
+    static List<Target> everyUser(String fileID) throws IOException {
+        List<Target> targets = new ArrayList<>();
+        try (DirectoryStream<Path> directories = Files.newDirectoryStream(Path.of(""), Files::isDirectory)) {
+            for (Path directory : directories)
+                targets.add(new Target(directory.getFileName().toString(), fileID));
+        }
+        return targets;
+    }
+
+    /**
+     * Every data file of the user, none if the user has no directory.
+     */
+    static List<Target> ofUser(String username) throws IOException {
+        List<Target> targets = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Path.of(username), username + "-*.txt")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                String fileID = name.substring(username.length() + 1, name.length() - ".txt".length());
+                if (fileID.matches("\\d+"))
+                    targets.add(new Target(username, fileID));
+            }
+        } catch (NoSuchFileException e) {
+            // The user never uploaded a file
+        }
+        return targets;
+    }
+
+    /**
+     * Scan the files and merge their summaries. The calling thread only waits and reports progress.
+     *
+     * @param progress may be null
+     * @return the result, or null if as many queries as allowed are running already
+     * @throws IOException if the progress report failed, the query is cancelled then
+     */
+    Result run(List<Target> targets, Progress progress) throws IOException, InterruptedException {
+        if (!running.tryAcquire())
+            return null;
+        Scan scan = new Scan(targets, 0, targets.size(), new AtomicInteger(), new AtomicBoolean());
+        try {
+            ForkJoinTask<Result> task = pool.submit(scan);
+            while (true) {
+                try {
+                    return task.get(PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    if (progress != null)
+                        progress.report(scan.scanned.get(), targets.size());
+                } catch (ExecutionException e) {
+                    throw new IOException(e.getCause());
+                }
+            }
+        } finally {
+            scan.cancelled.set(true);
+            running.release();
+        }
+    }
+
+    private class Scan extends RecursiveTask<Result> {
+        private static final long serialVersionUID = 1L;
+
+        final List<Target> targets;
+        final int from;
+        final int to;
+        final AtomicInteger scanned; // Shared by all tasks of the query
+        final AtomicBoolean cancelled; // Shared as well, the tasks that have not started yet return at once
+
+        Scan(List<Target> targets, int from, int to, AtomicInteger scanned, AtomicBoolean cancelled) {
+            this.targets = targets;
+            this.from = from;
+            this.to = to;
+            this.scanned = scanned;
+            this.cancelled = cancelled;
+        }
+
+        @Override
+        protected Result compute() {
+            if (to - from > FILES_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                Scan left = new Scan(targets, from, middle, scanned, cancelled);
+                left.fork();
+                Result result = new Scan(targets, middle, to, scanned, cancelled).compute();
+                result.merge(left.join());
+                return result;
+            }
+
+            Result result = new Result();
+            for (int i = from; i < to && !cancelled.get(); i++) {
+                scan(targets.get(i), result);
+                scanned.incrementAndGet();
+            }
+            return result;
+        }
+
+        @SuppressWarnings("try")
+        private void scan(Target target, Result result) {
+            String filename = target.username + "-" + target.fileID + ".txt";
+            try (FileLocks.Held held = locks.read(target.username, target.fileID)) {
+                DataSummary summary = DataSummary.of(Path.of(target.username, filename));
+                if (!summary.valid) {
+                    result.skipped++;
+                    return;
+                }
+                result.summary.merge(summary);
+                result.files++;
+            } catch (NoSuchFileException e) {
+                // Not every user has the file
+            } catch (IOException e) {
+                result.skipped++;
+                ServerLog.error("Aggregate query failed to read {}: {}", filename, e.getMessage());
+            }
+        }
+    }
+}
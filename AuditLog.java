@@ -0,0 +1,181 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Single-writer pipeline for the server's append-only log files.
+ *
+ * Request threads enqueue records into a bounded queue and carry on; they only block while the queue is full. One
+ * writer thread takes everything that queued up, waiting at most the flush interval for more, and appends each
+ * file's records with one write (group commit). With sync enabled the files are forced to disk before the records
+ * count as written. The future returned by {@link #append} completes once its record is written, so a caller that
+ * needs a durable record can wait for it.
+ */
+class AuditLog implements Runnable {
+    private static final int MAX_BATCH = 4096;
+
+    private static class Record {
+        final Path file;
+        final byte[] line;
+        final CompletableFuture<Void> written = new CompletableFuture<>();
+
+        Record(Path file, byte[] line) {
+            this.file = file;
+            this.line = line;
+        }
+    }
+
+    private static final Record STOP = new Record(null, null);
+
+    private final BlockingQueue<Record> queue;
+    private final long flushIntervalMillis;
+    private final boolean sync;
+    private final Map<Path, FileChannel> channels = new HashMap<>(); // Only used by the writer thread
+    private final Thread writer;
+
+    // Appends that found the queue full and had to wait for the writer, and how long they waited in total
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+
+    /**
+     * @param capacity            records that can wait in the queue before append blocks
+     * @param flushIntervalMillis how long the writer waits for more records after the first one of a batch
+     * @param sync                whether to force every batch to disk
+     */
+    AuditLog(int capacity, long flushIntervalMillis, boolean sync) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.sync = sync;
+        writer = new Thread(this, "audit-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queue a line to be appended to a file.
+     *
+     * @return completes when the line is written (and forced to disk if sync is enabled)
+     */
+    CompletableFuture<Void> append(Path file, String line) {
+        Record record = new Record(file, line.getBytes(StandardCharsets.UTF_8));
+        if (queue.offer(record))
+            return record.written;
+
+        long start = System.nanoTime();
+        try {
+            queue.put(record);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            record.written.completeExceptionally(e);
+        } finally {
+            waits.increment();
+            waitNanos.add(System.nanoTime() - start);
+        }
+        return record.written;
+    }
+
+    long waits() {
+        return waits.sum();
+    }
+
+    long waitNanos() {
+        return waitNanos.sum();
+    }
+
+    int queued() {
+        return queue.size();
+    }
+
+    /**
+     * Write everything queued so far and stop the writer.
+     */
+    void close() throws InterruptedException {
+        queue.put(STOP);
+        writer.join();
+    }
+
+    @Override
+    public void run() {
+        List<Record> batch = new ArrayList<>();
+        boolean stopped = false;
+        while (!stopped) {
+            try {
+                batch.add(queue.take());
+                if (flushIntervalMillis > 0) {
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+                    long remaining;
+                    while (batch.size() < MAX_BATCH && (remaining = deadline - System.nanoTime()) > 0) {
+                        Record record = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (record == null)
+                            break;
+                        batch.add(record);
+                    }
+                }
+                queue.drainTo(batch, MAX_BATCH - batch.size());
+            } catch (InterruptedException e) {
+                stopped = true;
+            }
+
+            stopped |= batch.remove(STOP);
+            write(batch);
+            batch.clear();
+        }
+
+        for (FileChannel channel : channels.values()) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                ServerLog.error("{}", e.getMessage());
+            }
+        }
+    }
+
+    private void write(List<Record> batch) {
+        Map<Path, List<Record>> byFile = new LinkedHashMap<>();
+        for (Record record : batch)
+            byFile.computeIfAbsent(record.file, file -> new ArrayList<>()).add(record);
+
+        for (Map.Entry<Path, List<Record>> entry : byFile.entrySet()) {
+            List<Record> records = entry.getValue();
+            int size = 0;
+            for (Record record : records)
+                size += record.line.length;
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            for (Record record : records)
+                buffer.put(record.line);
+            buffer.flip();
+
+            try {
+                FileChannel channel = channel(entry.getKey());
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+                if (sync)
+                    channel.force(false);
+                for (Record record : records)
+                    record.written.complete(null);
+            } catch (IOException e) {
+                ServerLog.error("Failed to write {} records to {}: {}", records.size(), entry.getKey(), e.getMessage());
+                for (Record record : records)
+                    record.written.completeExceptionally(e);
+            }
+        }
+    }
+
+    private FileChannel channel(Path file) throws IOException {
+        FileChannel channel = channels.get(file);
+        if (channel == null || !channel.isOpen()) {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            channels.put(file, channel);
+        }
+        return channel;
+    }
+}
@@ -1,9 +1,24 @@
 import javax.swing.plaf.IconUIResource;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Client {
 
@@ -11,10 +26,90 @@ public class Client {
     private static int SERVER_PORT;
     private static int UDP_PORT;
 
+    // Characters per UED chunk, set with -Dclient.chunkSize
+    private static final int UED_CHUNK_SIZE = Integer.getInteger("client.chunkSize", 64 * 1024);
+
+    // Shown whenever the client waits for a command, also after a message from another thread
+    private static final String COMMAND_PROMPT = "Enter one of the following commands (EDG, UED, SCS, DTE, AED, DWN, " +
+            "UVF, AGG, PRESENCE, STATS, OUT): ";
+
+    private static final List<String> SCS_OPERATIONS = List.of("AVERAGE", "MIN", "MAX", "SUM", "MEDIAN", "PERCENTILE",
+            "STDDEV", "HISTOGRAM");
+
+    // Threads generating an EDG data file, set with -Dclient.edgThreads
+    private static final int EDG_THREADS = Integer.getInteger("client.edgThreads",
+            Runtime.getRuntime().availableProcessors());
+
+    // Requests of a batch in flight at once, set with -Dclient.pipelineDepth
+    private static final int PIPELINE_DEPTH = Integer.getInteger("client.pipelineDepth", 32);
+    // Connections tried to resume the session after the connection to the server is lost
+    private static final int RESUME_ATTEMPTS = Integer.getInteger("client.resumeAttempts", 5);
+
+    // Endpoints of other devices resolved for UVF, used for -Dclient.endpointTtlSeconds (0 resolves every time)
+    private static final EndpointCache ENDPOINTS = new EndpointCache(
+            TimeUnit.SECONDS.toNanos(Long.getLong("client.endpointTtlSeconds", 60)));
+
+    // Other devices online, kept up to date by presence events while subscribed (PRESENCE ON)
+    private static final Map<String, InetSocketAddress> DIRECTORY = new ConcurrentHashMap<>();
+    private static boolean SUBSCRIBED;
+    // How often the command prompt checks for presence events while subscribed
+    private static final long EVENT_POLL_MILLIS = 50;
+
     private static boolean WAITING_FLAG;
-    private static boolean ACKED = true;
 
-    static final Object object = new Object();
+    // The UVF uploads in progress by transfer ID, UDPReceiver passes the ACKs it receives on to them
+    private static final Map<Integer, UVFProtocol.Sender> SENDING = new ConcurrentHashMap<>();
+    // Starts at a random ID, so packets left over from an earlier run are not taken for a new transfer
+    private static final AtomicInteger NEXT_TRANSFER_ID = new AtomicInteger(new Random().nextInt());
+
+    private static final int UDP_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    // Incoming transfers without a packet for this long are dropped, after the sender has long given up
+    private static final long TRANSFER_IDLE_NANOS = TimeUnit.MINUTES.toNanos(2);
+
+    /**
+     * Several requests in flight on one connection. Every request is sent with an ID that the server copies into its
+     * response, so the responses can be matched to the requests in whatever order they come back.
+     */
+    static class Pipeline {
+        private final MessageChannel channel;
+        private final Set<String> pending = new HashSet<>();
+        private int nextID = 1;
+
+        Pipeline(MessageChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Send a request without waiting for its response.
+         *
+         * @return the ID of the request
+         */
+        String submit(Map<String, String> request) throws IOException {
+            String id = String.valueOf(nextID++);
+            Map<String, String> tagged = new HashMap<>(request);
+            tagged.put("id", id);
+            channel.write(tagged);
+            pending.add(id);
+            return id;
+        }
+
+        /**
+         * Wait for the next response, in request order unless the server was asked for UNORDERED responses.
+         *
+         * @return the response, its "id" is the ID of the request it answers
+         */
+        Map<String, String> collect() throws IOException, ClassNotFoundException {
+            Map<String, String> response = channel.read();
+            pending.remove(response.get("id"));
+            return response;
+        }
+
+        // Requests that were sent and not yet answered
+        int pending() {
+            return pending.size();
+        }
+    }
 
     private static class UDPReceiver extends Thread {
         private final DatagramSocket SOCKET;
@@ -27,49 +122,43 @@ public class Client {
         public void run() {
             super.run();
 
-            byte[] buffer = new byte[20480];
-            byte[] ack = "ACK".getBytes();
+            byte[] buffer = new byte[UVFProtocol.MAX_DATAGRAM];
             DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
 
-            File file;
-            FileOutputStream outputStream = null;
-            String deviceName = null;
-            String filename = null;
+            // Incoming transfers by sender address and transfer ID, only used by this thread
+            Map<String, UVFProtocol.Receiver> incoming = new HashMap<>();
 
             while (true) {
                 try {
+                    packet.setLength(buffer.length);
                     SOCKET.receive(packet);
-                    String info = new String(buffer, 0, packet.getLength());
-
-                    if (info.startsWith("FileInfo")) {
-                        String params[] = info.split(" ");
-                        deviceName = params[1];
-                        filename = params[2];
 
-
-                        file = new File(deviceName + "_" + filename);
-                        file.createNewFile();
-                        outputStream = new FileOutputStream(file);
-
-                        printWithWaitingFlag("Start receiving " + filename + " from " + deviceName);
-
-                        DatagramPacket rcvPacket = new DatagramPacket(ack, ack.length, packet.getAddress(), packet.getPort());
-                        SOCKET.send(rcvPacket);
+                    if (UVFProtocol.isAck(packet)) {
+                        UVFProtocol.Sender sender = SENDING.get(UVFProtocol.transferID(packet));
+                        if (sender != null)
+                            sender.onAck(packet);
                         continue;
-                    } else if (info.equals("Finished")) {
-                        printWithWaitingFlag("Successfully received " + filename + " from " + deviceName);
-                        continue;
-                    } else if (info.equals("ACK")) {
-                        synchronized (object) {
-                            ACKED = true;
-                            object.notify();
-                        }
+                    }
+                    if (!UVFProtocol.isData(packet))
                         continue;
+
+                    String key = packet.getSocketAddress() + "/" + UVFProtocol.transferID(packet);
+                    UVFProtocol.Receiver receiver = incoming.get(key);
+                    if (receiver == null) {
+                        // Finished transfers stay a while to acknowledge packets the sender repeats
+                        incoming.values().removeIf(idle -> {
+                            if (idle.idle() < TRANSFER_IDLE_NANOS)
+                                return false;
+                            idle.abandon();
+                            return true;
+                        });
+                        receiver = new UVFProtocol.Receiver(new ReceivedFile());
+                        incoming.put(key, receiver);
                     }
-                    outputStream.write(packet.getData(), 0, packet.getLength());
-                    outputStream.flush();
-                    DatagramPacket rcvPacket = new DatagramPacket(ack, ack.length, packet.getAddress(), packet.getPort());
-                    SOCKET.send(rcvPacket);
+
+                    byte[] ack = receiver.onData(packet);
+                    if (ack != null)
+                        SOCKET.send(new DatagramPacket(ack, ack.length, packet.getSocketAddress()));
                 } catch (IOException e) {
                     break;
                 }
@@ -77,65 +166,211 @@ public class Client {
         }
     }
 
+    // Writes an incoming UVF file to deviceName_filename, each block at its position as it arrives
+    private static class ReceivedFile implements UVFProtocol.Sink {
+        private FileChannel channel;
+        private String deviceName;
+        private String filename;
+
+        @Override
+        public void open(String header) throws IOException {
+            String[] params = header.split(" ", 2);
+            deviceName = params[0];
+            filename = params[1];
+            channel = FileChannel.open(Path.of(deviceName + "_" + filename), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            printWithWaitingFlag("Start receiving " + filename + " from " + deviceName);
+        }
+
+        @Override
+        public void write(long position, byte[] data, int offset, int length) throws IOException {
+            ByteBuffer block = ByteBuffer.wrap(data, offset, length);
+            while (block.hasRemaining())
+                position += channel.write(block, position);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+            printWithWaitingFlag("Successfully received " + filename + " from " + deviceName);
+        }
+
+        @Override
+        public void abort() {
+            try {
+                if (channel != null)
+                    channel.close();
+            } catch (IOException ignored) {
+            }
+            printWithWaitingFlag("Failed to receive " + (filename == null ? "a file" : filename) + " from " +
+                    (deviceName == null ? "another device" : deviceName));
+        }
+    }
+
     private static class UDPSender extends Thread {
         private final DatagramSocket SOCKET;
         private final String FILENAME;
         private final String SENDER_NAME;
         private final String RECEIVER_NAME;
-        private final InetAddress ADDRESS;
-        private final int PORT;
+        private final InetSocketAddress ENDPOINT;
 
-        UDPSender(DatagramSocket socket, String filename, String senderName, String receiverName, InetAddress address,
-                  int port) {
+        UDPSender(DatagramSocket socket, String filename, String senderName, String receiverName,
+                  InetSocketAddress endpoint) {
             this.SOCKET = socket;
             this.FILENAME = filename;
             this.SENDER_NAME = senderName;
             this.RECEIVER_NAME = receiverName;
-            this.ADDRESS = address;
-            this.PORT = port;
+            this.ENDPOINT = endpoint;
         }
 
         @Override
         public void run() {
             super.run();
 
-            byte[] buffer = new byte[20480];
-
-            boolean fileInfoSent = false;
-            try {
-                FileInputStream inputStream = new FileInputStream(FILENAME);
-                while (true) {
-                    if (!fileInfoSent) {
-                        byte[] fileInfo = ("FileInfo " + SENDER_NAME + " " + FILENAME).getBytes();
-                        DatagramPacket packet = new DatagramPacket(fileInfo, fileInfo.length, ADDRESS, PORT);
-                        SOCKET.send(packet);
-                        fileInfoSent = true;
-                    } else {
-                        int read = inputStream.read(buffer);
-                        if (read == -1) {
-                            byte[] finish = "Finished".getBytes();
-                            DatagramPacket packet = new DatagramPacket(finish, finish.length, ADDRESS, PORT);
-                            SOCKET.send(packet);
-                            break;
-                        }
-                        DatagramPacket packet = new DatagramPacket(buffer, read, ADDRESS, PORT);
-                        SOCKET.send(packet);
-                    }
-                    ACKED = false;
-                    synchronized (object) {
-                        while (!ACKED)
-                            object.wait();
-                    }
+            int transferID = NEXT_TRANSFER_ID.getAndIncrement();
+            try (InputStream inputStream = new BufferedInputStream(new FileInputStream(FILENAME))) {
+                UVFProtocol.Sender sender = new UVFProtocol.Sender(SOCKET, ENDPOINT.getAddress(), ENDPOINT.getPort(),
+                        transferID, SENDER_NAME + " " + FILENAME, inputStream);
+                SENDING.put(transferID, sender);
+                if (sender.send())
+                    printWithWaitingFlag("Successfully uploaded " + FILENAME + " to " + RECEIVER_NAME);
+                else {
+                    // The device may have moved, so the next transfer resolves it again
+                    ENDPOINTS.invalidate(RECEIVER_NAME, ENDPOINT);
+                    printWithWaitingFlag("File upload failed, " + RECEIVER_NAME + " stopped responding");
                 }
             } catch (IOException | InterruptedException e) {
+                ENDPOINTS.invalidate(RECEIVER_NAME, ENDPOINT);
                 System.out.println("File upload failed");
                 e.printStackTrace();
+            } finally {
+                SENDING.remove(transferID);
+            }
+        }
+    }
+
+    /**
+     * The connection to the server once logged in. Presence events can arrive at any time, so they are applied to the
+     * directory wherever the client reads and never returned as the response to a request.
+     */
+    private static class PresenceChannel implements MessageChannel {
+        private final MessageChannel channel;
+
+        PresenceChannel(MessageChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public Map<String, String> read() throws IOException, ClassNotFoundException {
+            while (true) {
+                Map<String, String> message = channel.read();
+                if (!"EVENT".equals(message.get("command")))
+                    return message;
+                applyEvents(message.get("content"), true);
+            }
+        }
+
+        @Override
+        public void write(Map<String, String> message) throws IOException {
+            channel.write(message);
+        }
+
+        @Override
+        public boolean ready() throws IOException {
+            return channel.ready();
+        }
+
+        /**
+         * Apply the events that have arrived, without waiting for more. Only called at the prompt, when no response is
+         * outstanding.
+         */
+        void readEvents() throws IOException, ClassNotFoundException {
+            while (channel.ready()) {
+                Map<String, String> message = channel.read();
+                if ("EVENT".equals(message.get("command")))
+                    applyEvents(message.get("content"), true);
+            }
+        }
+    }
+
+    // Lines "JOIN username address udpPort" and "LEAVE username", see PresenceFeed
+    private static void applyEvents(String events, boolean print) {
+        for (String event : events.split("\n")) {
+            String[] fields = event.split(" ");
+            if (fields[0].equals("JOIN") && fields.length == 4) {
+                DIRECTORY.put(fields[1], new InetSocketAddress(fields[2], Integer.parseInt(fields[3])));
+                if (print)
+                    printWithWaitingFlag("PRESENCE: " + fields[1] + " is online (" + fields[2] + ":" + fields[3] +
+                            ")");
+            } else if (fields[0].equals("LEAVE") && fields.length == 2) {
+                DIRECTORY.remove(fields[1]);
+                if (print)
+                    printWithWaitingFlag("PRESENCE: " + fields[1] + " is offline");
             }
-            printWithWaitingFlag("Successfully uploaded " + FILENAME + " to " + RECEIVER_NAME);
         }
     }
 
-    @SuppressWarnings("unchecked")
+    // Reads the console on its own thread, so the command prompt can show presence events while it waits
+    private static class Console extends Thread {
+        private final BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+        private final BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+        private volatile boolean ended = false;
+
+        Console() {
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                String line;
+                while ((line = reader.readLine()) != null)
+                    lines.add(line);
+            } catch (IOException e) {
+                System.out.println("Failed to read the console.");
+            } finally {
+                ended = true;
+            }
+        }
+
+        /**
+         * @return the next line, or null at the end of the input
+         */
+        String readLine() {
+            String line;
+            while ((line = readLine(1000)) == null && !ended())
+                ;
+            return line;
+        }
+
+        /**
+         * @return the next line, or null at the end of the input or if no line was entered within the timeout
+         */
+        String readLine(long timeoutMillis) {
+            try {
+                return lines.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        boolean ended() {
+            return ended && lines.isEmpty();
+        }
+    }
+
+    // The next command, applying presence events while waiting for it if subscribed
+    private static String readCommand(Console console, PresenceChannel channel)
+            throws IOException, ClassNotFoundException {
+        if (!SUBSCRIBED)
+            return console.readLine();
+        String command;
+        while ((command = console.readLine(EVENT_POLL_MILLIS)) == null && !console.ended())
+            channel.readEvents();
+        return command;
+    }
+
     public static void main(String[] args) {
         if (args.length != 3) {
             System.out.println("===== Error usage: java TCPClient SERVER_IP SERVER_PORT =====");
@@ -148,31 +383,34 @@ public class Client {
 
 
         // define socket for client
-        ObjectInputStream inputStream;
-        ObjectOutputStream outputStream;
-        BufferedReader stdInputReader;
+        MessageChannel channel;
+        Console console;
         Socket connection;
         DatagramSocket socket;
 
         // Create UDP socket
         try {
             socket = new DatagramSocket(UDP_PORT);
+            // Room for the windows of several transfers at once, the OS may grant less
+            socket.setReceiveBufferSize(UDP_BUFFER_SIZE);
+            socket.setSendBufferSize(UDP_BUFFER_SIZE);
         } catch (SocketException e) {
             System.out.println("Failed to create UDP socket.");
             return;
         }
         // Create TCP socket
         try {
-            connection = new Socket(SERVER_HOST, SERVER_PORT);
-            inputStream = new ObjectInputStream(connection.getInputStream());
-            outputStream = new ObjectOutputStream(connection.getOutputStream());
-            outputStream.flush();
+            // Opened as a channel, so DWN can receive straight into the file (FileChannel.transferFrom)
+            connection = SocketChannel.open(new InetSocketAddress(SERVER_HOST, SERVER_PORT)).socket();
+            channel = MessageChannel.ObjectStreamChannel.connect(MessageChannel.input(connection),
+                    MessageChannel.output(connection));
         } catch (IOException e) {
             System.out.println("Failed to create TCP socket. Maybe server is offline or server closed the connection.");
             return;
         }
 
-        stdInputReader = new BufferedReader(new InputStreamReader(System.in));
+        console = new Console();
+        console.start();
 
         UDPReceiver receiver = new UDPReceiver(socket);
         receiver.start();
@@ -180,76 +418,139 @@ public class Client {
         try {
             int status = 0;
             String username = "";
+            String token = null; // Resumes the session if the connection is lost
+            String input = null; // Last answer to a prompt
+            String redirected = null; // Username to send again to the server the login was redirected to
+
+            // Ask for the binary protocol when started with -Dclient.protocol=binary
+            if (System.getProperty("client.protocol", "object").equals("binary"))
+                channel = negotiateBinaryProtocol(channel, connection);
 
             // Receive messages related to log in
             while (status == 0) {
-                Map<String, String> msg = (Map<String, String>) inputStream.readObject();
+                Map<String, String> msg = channel.read();
                 Map<String, String> info;
                 switch (msg.get("status")) {
                     case "100":
                         System.out.println(msg.get("information"));
                         username = msg.get("username");
+                        token = msg.get("token");
 
                         info = Map.of("command", "LOGIN", "content", String.valueOf(UDP_PORT));
-                        outputStream.writeObject(info);
-                        outputStream.flush();
+                        channel.write(info);
 
                         status = 1;
+
+                        // Ask for batch responses as soon as they are ready with -Dclient.pipeline=unordered
+                        if (System.getProperty("client.pipeline", "ordered").equals("unordered")) {
+                            channel.write(Map.of("command", "PIPELINE", "content", "UNORDERED", "username", username));
+                            channel.read();
+                        }
                         break;
                     case "101":
                         System.out.println(msg.get("information"));
                         break;
                     case "102":
                         System.out.print(msg.get("prompt"));
-                        info = Map.of("command", "LOGIN", "content", stdInputReader.readLine());
-                        outputStream.writeObject(info);
-                        outputStream.flush();
+                        if (redirected != null) {
+                            input = redirected;
+                            redirected = null;
+                            System.out.println(input);
+                        } else
+                            input = console.readLine();
+                        info = Map.of("command", "LOGIN", "content", input);
+                        channel.write(info);
                         break;
                     case "103":
                         System.out.println(msg.get("information"));
                         status = 2;
                         break;
+                    case "105":
+                        // Another server of the cluster owns the account, log in there from now on
+                        System.out.println(msg.get("information"));
+                        String owner = msg.get("redirect");
+                        SERVER_HOST = owner.substring(0, owner.lastIndexOf(':'));
+                        SERVER_PORT = Integer.parseInt(owner.substring(owner.lastIndexOf(':') + 1));
+                        closeQuietly(connection);
+                        connection = SocketChannel.open(new InetSocketAddress(SERVER_HOST, SERVER_PORT)).socket();
+                        channel = MessageChannel.ObjectStreamChannel.connect(MessageChannel.input(connection),
+                                MessageChannel.output(connection));
+                        if (System.getProperty("client.protocol", "object").equals("binary"))
+                            channel = negotiateBinaryProtocol(channel, connection);
+                        redirected = input;
+                        break;
                 }
             }
 
             // Receive messages related to 6 different operations
+            PresenceChannel commands = new PresenceChannel(channel);
             while (status == 1) {
-                System.out.print("Enter one of the following commands (EDG, UED, SCS, DTE, AED, UVF, OUT): ");
+                System.out.print(COMMAND_PROMPT);
                 WAITING_FLAG = true;
-                String command = stdInputReader.readLine();
+                String command = readCommand(console, commands);
                 WAITING_FLAG = false;
                 if (command.length() < 3) {
                     System.out.println("Error - \"" + command + "\" is an invalid Command.");
                     continue;
                 }
 
-                String[] params = command.split("\\s+");
-                switch (params[0]) {
-                    case "EDG":
-                        handleEDG(params, username);
-                        break;
-                    case "UED":
-                        handleUED(params, username, inputStream, outputStream);
-                        break;
-                    case "SCS":
-                        handleSCS(params, username, inputStream, outputStream);
-                        break;
-                    case "DTE":
-                        handleDTE(params, username, inputStream, outputStream);
-                        break;
-                    case "AED":
-                        handleAED(username, inputStream, outputStream);
-                        break;
-                    case "OUT":
-                        handleOUT(username, outputStream);
-                        status = 0;
-                        break;
-                    case "UVF":
-                        handleUVF(params, username, inputStream, outputStream, socket);
-                        break;
-                    default:
-                        System.out.println("Error - \"" + command + "\" is an invalid Command.");
-                        break;
+                try {
+                    if (command.contains(";")) {
+                        handleBatch(command, username, commands);
+                        continue;
+                    }
+
+                    String[] params = command.split("\\s+");
+                    switch (params[0]) {
+                        case "EDG":
+                            handleEDG(params, username);
+                            break;
+                        case "UED":
+                            handleUED(params, username, commands);
+                            break;
+                        case "SCS":
+                            handleSCS(params, username, commands);
+                            break;
+                        case "DTE":
+                            handleDTE(params, username, commands);
+                            break;
+                        case "AED":
+                            handleAED(username, commands);
+                            break;
+                        case "DWN":
+                            handleDWN(params, username, commands, connection);
+                            break;
+                        case "STATS":
+                            handleSTATS(username, commands);
+                            break;
+                        case "AGG":
+                            handleAGG(params, username, commands);
+                            break;
+                        case "PRESENCE":
+                            handlePresence(params, username, commands);
+                            break;
+                        case "OUT":
+                            handleOUT(username, commands);
+                            status = 0;
+                            break;
+                        case "UVF":
+                            handleUVF(params, username, commands, socket);
+                            break;
+                        default:
+                            System.out.println("Error - \"" + command + "\" is an invalid Command.");
+                            break;
+                    }
+                } catch (SocketException | EOFException e) {
+                    // The link dropped, so resume the session on a new connection and keep taking commands
+                    Reconnection reconnection = token == null ? null : resume(token);
+                    if (reconnection == null)
+                        throw e;
+                    closeQuietly(connection);
+                    connection = reconnection.connection;
+                    commands = reconnection.channel;
+                    token = reconnection.token;
+                    System.out.println("Connection lost, session resumed. \"" + command + "\" may not have " +
+                            "completed, enter it again if needed.");
                 }
             }
         } catch (SocketException | EOFException e) {
@@ -258,7 +559,6 @@ public class Client {
             e.printStackTrace();
         } finally {
             try {
-                stdInputReader.close();
                 connection.close();
 
                 socket.close();
@@ -270,15 +570,109 @@ public class Client {
         }
     }
 
+    // A new connection to the server with the session resumed on it
+    private static class Reconnection {
+        final Socket connection;
+        final PresenceChannel channel;
+        final String token;
+
+        Reconnection(Socket connection, PresenceChannel channel, String token) {
+            this.connection = connection;
+            this.channel = channel;
+            this.token = token;
+        }
+    }
+
+    /**
+     * Connect to the server again and resume the session with the token of the last login or resume, so the server
+     * skips the login prompts and keeps this device in its active list. Up to -Dclient.resumeAttempts connections are
+     * tried, waiting twice as long after each one that fails, starting at one second.
+     *
+     * @return the new connection, or null if the session could not be resumed
+     */
+    private static Reconnection resume(String token) {
+        long delayMillis = 1000;
+        for (int attempt = 1; attempt <= RESUME_ATTEMPTS; attempt++) {
+            Socket connection = null;
+            try {
+                connection = SocketChannel.open(new InetSocketAddress(SERVER_HOST, SERVER_PORT)).socket();
+                MessageChannel channel = MessageChannel.ObjectStreamChannel.connect(MessageChannel.input(connection),
+                        MessageChannel.output(connection));
+                if (System.getProperty("client.protocol", "object").equals("binary"))
+                    channel = negotiateBinaryProtocol(channel, connection);
+
+                // Sent before the username prompt is read, so resuming takes one round trip
+                channel.write(Map.of("command", "RESUME", "token", token, "content", String.valueOf(UDP_PORT)));
+                channel.read();
+                Map<String, String> msg = channel.read();
+                if (!"100".equals(msg.get("status"))) {
+                    System.out.println(msg.get("information"));
+                    closeQuietly(connection);
+                    return null;
+                }
+                if (System.getProperty("client.pipeline", "ordered").equals("unordered")) {
+                    channel.write(Map.of("command", "PIPELINE", "content", "UNORDERED", "username",
+                            msg.get("username")));
+                    channel.read();
+                }
+                // The directory starts over from the devices active now, events may have been missed
+                PresenceChannel commands = new PresenceChannel(channel);
+                if (SUBSCRIBED)
+                    subscribe(msg.get("username"), commands);
+                return new Reconnection(connection, commands, msg.get("token"));
+            } catch (IOException | ClassNotFoundException e) {
+                closeQuietly(connection);
+                System.out.println("Failed to reconnect to the server (attempt " + attempt + " of " +
+                        RESUME_ATTEMPTS + ")");
+            }
+
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            delayMillis *= 2;
+        }
+        return null;
+    }
+
+    private static void closeQuietly(Socket connection) {
+        try {
+            if (connection != null)
+                connection.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    /**
+     * Request the binary protocol before logging in. The username prompt the server sent on connect is discarded,
+     * because the server prompts again in the binary protocol once it has accepted the request.
+     */
+    private static MessageChannel negotiateBinaryProtocol(MessageChannel channel, Socket connection)
+            throws IOException, ClassNotFoundException {
+        channel.write(Map.of("command", "PROTOCOL", "content", "BINARY"));
+        channel.read();
+        Map<String, String> msg = channel.read();
+        if (!"100".equals(msg.get("status"))) {
+            System.out.println("Binary protocol not supported by server: " + msg.get("information"));
+            return channel;
+        }
+        return new MessageChannel.BinaryChannel(MessageChannel.input(connection), MessageChannel.output(connection));
+    }
+
     private static void handleEDG(String[] params, String username) {
-        if (params.length != 3) {
+        if (params.length != 3 && params.length != 4) {
             System.out.println("EDG: ERROR - EDG command requires TWO arguments fileID and " +
-                    "dataAmount. Commands are like \"EDG 1 10\"");
+                    "dataAmount, and optionally a seed. Commands are like \"EDG 1 10\" or \"EDG 1 10 42\"");
             return;
         }
         try {
             int fileID = Integer.parseInt(params[1]);
-            int dataAmount = Integer.parseInt(params[2]);
+            long dataAmount = Long.parseLong(params[2]);
+            // The same seed generates the same file, a random one is printed so the file can be generated again
+            long seed = params.length == 4 ? Long.parseLong(params[3]) : new Random().nextLong();
 
             if (fileID < 1 || dataAmount < 1) {
                 System.out.println("EDG: ERROR - The fileID and dataAmount should be positive " +
@@ -289,32 +683,21 @@ public class Client {
             String filename = username + "-" + fileID + ".txt";
 
             System.out.println("EDG: Generating datafile " + filename + " with " + dataAmount +
-                    "data samples...");
-
-            // Create file if the file is not existed
-            File file = new File(filename);
-            file.createNewFile();
-            PrintWriter writer = new PrintWriter(file);
+                    " data samples (seed " + seed + ")...");
 
             // Generate and write data into the file
-            Random random = new Random();
-            for (int i = 0; i < dataAmount; i++) {
-                writer.println(random.nextInt(9999) + 1);
-            }
-            writer.close();
+            new DataGenerator(EDG_THREADS).generate(Path.of(filename), dataAmount, seed);
             System.out.println("EDG: Data file generated.");
         } catch (NumberFormatException e) {
-            System.out.println("EDG: ERROR - The fileID or dataAmount are not integers, you need to " +
+            System.out.println("EDG: ERROR - The fileID, dataAmount or seed are not integers, you need to " +
                     "specify the parameter as integers. Commands are like \"EDG 1 10\"");
         } catch (IOException e) {
             System.out.println("EDG: ERROR - Failed to generate datafile.");
         }
     }
 
-    @SuppressWarnings("unchecked")
-    private static void handleUED(String[] params, String username, ObjectInputStream inputStream,
-                                  ObjectOutputStream outputStream) throws SocketException, EOFException,
-            ClassNotFoundException {
+    private static void handleUED(String[] params, String username, MessageChannel channel)
+            throws SocketException, EOFException, ClassNotFoundException {
         if (params.length != 2) {
             System.out.println("UED: ERROR - UED command requires ONE argument fileID. " +
                     "Commands are like \"UED 1\"");
@@ -334,14 +717,19 @@ public class Client {
                 System.out.println("UED: ERROR - The file " + filename + " to be uploaded does not exist.");
                 return;
             }
-            String content = Files.readString(file.toPath());
-
-            Map<String, String> info = Map.of("command", "UED", "fileID", String.valueOf(fileID),
-                    "username", username, "content", content);
-            outputStream.writeObject(info);
-            outputStream.flush();
+            // Stream the file in chunks, so only one chunk is in memory at a time
+            char[] buffer = new char[UED_CHUNK_SIZE];
+            try (Reader reader = Files.newBufferedReader(file.toPath())) {
+                int read;
+                while ((read = reader.read(buffer)) != -1) {
+                    channel.write(Map.of("command", "UED", "fileID", String.valueOf(fileID), "username", username,
+                            "chunk", new String(buffer, 0, read), "last", "false"));
+                }
+            }
+            channel.write(Map.of("command", "UED", "fileID", String.valueOf(fileID), "username", username,
+                    "chunk", "", "last", "true"));
 
-            Map<String, String> map = (Map<String, String>) inputStream.readObject();
+            Map<String, String> map = channel.read();
             if (map.get("status").equals("100"))
                 System.out.println("UED: " + map.get("information"));
             else if (map.get("status").equals("101"))
@@ -356,111 +744,420 @@ public class Client {
         }
     }
 
-    @SuppressWarnings("unchecked")
-    private static void handleSCS(String[] params, String username, ObjectInputStream inputStream,
-                                  ObjectOutputStream outputStream) throws SocketException, EOFException,
-            ClassNotFoundException {
-        if (params.length != 3) {
+    private static void handleSCS(String[] params, String username, MessageChannel channel)
+            throws SocketException, EOFException, ClassNotFoundException {
+        Map<String, String> info = buildSCS(params, username);
+        if (info == null)
+            return;
+
+        try {
+            channel.write(info);
+            printSCS(channel.read());
+        } catch (SocketException | EOFException | ClassNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            System.out.println("UED: ERROR - Failed to use server computation service");
+        }
+    }
+
+    // Check an SCS command and build its request, null if the command is invalid
+    private static Map<String, String> buildSCS(String[] params, String username) {
+        if (params.length != 3 && params.length != 4) {
             System.out.println("SCS: ERROR - SCS command requires TWO argument fileID and computationOperation " +
                     "Commands are like \"SCS 1 SUM\"");
-            return;
+            return null;
         }
 
         try {
             int fileID = Integer.parseInt(params[1]);
             if (fileID < 1) {
                 System.out.println("SCS: ERROR - The fileID should be positive integer. Commands are like \"SCS 1 SUM\"");
-                return;
+                return null;
             }
-            if (!params[2].equals("AVERAGE") && !params[2].equals("MIN") && !params[2].equals("MAX") &&
-                    !params[2].equals("SUM")) {
+            if (!SCS_OPERATIONS.contains(params[2])) {
                 System.out.println("SCS: ERROR - The computationOperation should one of the following " +
-                        "[\"AVERAGE\", \"MIN\", \"MAX\", \"SUM\"]. Commands are like \"SCS 1 SUM\"");
-                return;
+                        "[\"AVERAGE\", \"MIN\", \"MAX\", \"SUM\", \"MEDIAN\", \"PERCENTILE\", \"STDDEV\", " +
+                        "\"HISTOGRAM\"]. Commands are like \"SCS 1 SUM\"");
+                return null;
             }
-            Map<String, String> info = Map.of("command", "SCS", "fileID", String.valueOf(fileID),
-                    "username", username, "operation", params[2]);
-            outputStream.writeObject(info);
-            outputStream.flush();
 
-            Map<String, String> map = (Map<String, String>) inputStream.readObject();
-            if (map.get("status").equals("100"))
-                System.out.println("SCS: " + map.get("information"));
-            else if (map.get("status").equals("101") || map.get("status").equals("104"))
-                System.out.println("SCS: ERROR - " + map.get("information"));
+            if (params[2].equals("PERCENTILE") || params[2].equals("HISTOGRAM")) {
+                if (params.length != 4 || !validSCSArgument(params[2], params[3])) {
+                    System.out.println("SCS: ERROR - " + params[2] + " requires an argument, a percentile between " +
+                            "0 and 100 or a number of buckets between 1 and 1000. Commands are like " +
+                            "\"SCS 1 PERCENTILE 95\" or \"SCS 1 HISTOGRAM 10\"");
+                    return null;
+                }
+                return Map.of("command", "SCS", "fileID", String.valueOf(fileID), "username", username,
+                        "operation", params[2], "argument", params[3]);
+            } else if (params.length == 4) {
+                System.out.println("SCS: ERROR - " + params[2] + " does not take an argument. Commands are like " +
+                        "\"SCS 1 SUM\"");
+                return null;
+            }
+            return Map.of("command", "SCS", "fileID", String.valueOf(fileID), "username", username,
+                    "operation", params[2]);
         } catch (NumberFormatException e) {
             System.out.println("SCS: ERROR - The fileID is not integer, you need to " +
                     "specify the parameter as integers. Commands are like \"SCS 1 SUM\"");
+            return null;
+        }
+    }
+
+    private static void printSCS(Map<String, String> map) {
+        if (map.get("status").equals("100"))
+            System.out.println("SCS: " + map.get("information"));
+        else if (map.get("status").equals("101") || map.get("status").equals("104"))
+            System.out.println("SCS: ERROR - " + map.get("information"));
+    }
+
+    private static boolean validSCSArgument(String operation, String argument) {
+        try {
+            if (operation.equals("PERCENTILE")) {
+                double percentile = Double.parseDouble(argument);
+                return percentile >= 0 && percentile <= 100;
+            }
+            int buckets = Integer.parseInt(argument);
+            return buckets >= 1 && buckets <= 1000;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static void handleDTE(String[] params, String username, MessageChannel channel)
+            throws SocketException, EOFException, ClassNotFoundException {
+        Map<String, String> info = buildDTE(params, username);
+        if (info == null)
+            return;
+
+        try {
+            channel.write(info);
+            printDTE(channel.read());
         } catch (SocketException | EOFException | ClassNotFoundException e) {
             throw e;
         } catch (IOException e) {
-            System.out.println("UED: ERROR - Failed to use server computation service");
+            System.out.println("DTE: ERROR - Failed to use server computation service");
         }
     }
 
-    @SuppressWarnings("unchecked")
-    private static void handleDTE(String[] params, String username, ObjectInputStream inputStream,
-                                  ObjectOutputStream outputStream) throws SocketException, EOFException,
-            ClassNotFoundException {
+    // Check a DTE command and build its request, null if the command is invalid
+    private static Map<String, String> buildDTE(String[] params, String username) {
         if (params.length != 2) {
             System.out.println("DTE: ERROR - DTE command requires ONE argument fileID. " +
                     "Commands are like \"DTE 1\"");
-            return;
+            return null;
         }
 
         try {
             int fileID = Integer.parseInt(params[1]);
             if (fileID < 1) {
                 System.out.println("DTE: ERROR - The fileID should be positive integer. Commands are like \"DTE 1\"");
-                return;
+                return null;
             }
-            Map<String, String> info = Map.of("command", "DTE", "fileID", String.valueOf(fileID),
-                    "username", username);
-            outputStream.writeObject(info);
-            outputStream.flush();
-
-            Map<String, String> map = (Map<String, String>) inputStream.readObject();
-            if (map.get("status").equals("100"))
-                System.out.println("DTE: " + map.get("information"));
-            else if (map.get("status").equals("101") || map.get("status").equals("104"))
-                System.out.println("DTE: ERROR - " + map.get("information"));
+            return Map.of("command", "DTE", "fileID", String.valueOf(fileID), "username", username);
         } catch (NumberFormatException e) {
             System.out.println("DTE: ERROR - The fileID is not integer, you need to " +
                     "specify the parameter as integers. Commands are like \"DTE 1\"");
+            return null;
+        }
+    }
+
+    private static void printDTE(Map<String, String> map) {
+        if (map.get("status").equals("100"))
+            System.out.println("DTE: " + map.get("information"));
+        else if (map.get("status").equals("101") || map.get("status").equals("104"))
+            System.out.println("DTE: ERROR - " + map.get("information"));
+    }
+
+    private static void handleAED(String username, MessageChannel channel)
+            throws SocketException, EOFException, ClassNotFoundException {
+        try {
+            Map<String, String> info = Map.of("command", "AED", "username", username);
+            channel.write(info);
+
+            printAED(channel.read());
         } catch (SocketException | EOFException | ClassNotFoundException e) {
             throw e;
         } catch (IOException e) {
-            System.out.println("DTE: ERROR - Failed to use server computation service");
+            System.out.println("DTE: ERROR - Failed to get list of active edge devices");
         }
     }
 
-    @SuppressWarnings("unchecked")
-    private static void handleAED(String username, ObjectInputStream inputStream, ObjectOutputStream outputStream)
+    // PRESENCE ON keeps the directory of the other devices up to date, PRESENCE OFF stops it
+    private static void handlePresence(String[] params, String username, MessageChannel channel)
             throws SocketException, EOFException, ClassNotFoundException {
+        if (params.length != 2 || !params[1].equals("ON") && !params[1].equals("OFF")) {
+            System.out.println("PRESENCE: ERROR - PRESENCE command requires ONE argument ON or OFF. " +
+                    "Commands are like \"PRESENCE ON\"");
+            return;
+        }
+
         try {
-            Map<String, String> info = Map.of("command", "AED", "username", username);
-            outputStream.writeObject(info);
-            outputStream.flush();
+            if (params[1].equals("OFF")) {
+                channel.write(Map.of("command", "PRESENCE", "content", "OFF", "username", username));
+                SUBSCRIBED = false;
+                DIRECTORY.clear();
+                System.out.println("PRESENCE: " + channel.read().get("information"));
+                return;
+            }
+
+            if (subscribe(username, channel)) {
+                System.out.println("PRESENCE: " + DIRECTORY.size() + " other devices online" +
+                        (DIRECTORY.isEmpty() ? "" : ": " + String.join(", ", DIRECTORY.keySet())));
+            }
+        } catch (SocketException | EOFException | ClassNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            System.out.println("PRESENCE: ERROR - Failed to subscribe to presence events");
+        }
+    }
+
+    /**
+     * Subscribe to presence events and fill the directory with the devices online now.
+     *
+     * @return whether the server accepted the subscription
+     */
+    private static boolean subscribe(String username, MessageChannel channel)
+            throws IOException, ClassNotFoundException {
+        channel.write(Map.of("command", "PRESENCE", "content", "ON", "username", username));
+        Map<String, String> map = channel.read();
+        DIRECTORY.clear();
+        SUBSCRIBED = false;
+        if (!map.get("status").equals("100")) {
+            System.out.println("PRESENCE: ERROR - " + map.get("information"));
+            return false;
+        }
+        applyEvents(map.get("content"), false);
+        SUBSCRIBED = true;
+        return true;
+    }
+
+    /**
+     * Aggregate an SCS operation over file N of every user ("AGG FILE 1 SUM", administrators only) or over every file
+     * of a user ("AGG USER alice AVERAGE"), printing the progress the server reports until the result arrives.
+     */
+    private static void handleAGG(String[] params, String username, MessageChannel channel)
+            throws SocketException, EOFException, ClassNotFoundException {
+        if (params.length != 4 && params.length != 5 || !params[1].equals("FILE") && !params[1].equals("USER")) {
+            System.out.println("AGG: ERROR - AGG command requires a scope FILE fileID or USER username and a " +
+                    "computationOperation. Commands are like \"AGG FILE 1 SUM\" or \"AGG USER " + username +
+                    " AVERAGE\"");
+            return;
+        }
+        if (!SCS_OPERATIONS.contains(params[3]) || params[3].equals("HISTOGRAM")) {
+            System.out.println("AGG: ERROR - The computationOperation should one of the following " +
+                    "[\"AVERAGE\", \"MIN\", \"MAX\", \"SUM\", \"MEDIAN\", \"PERCENTILE\", \"STDDEV\"]");
+            return;
+        }
+        if (params[3].equals("PERCENTILE") != (params.length == 5) ||
+                params.length == 5 && !validSCSArgument(params[3], params[4])) {
+            System.out.println("AGG: ERROR - Only PERCENTILE takes an argument, a percentile between 0 and 100. " +
+                    "Commands are like \"AGG FILE 1 PERCENTILE 95\"");
+            return;
+        }
 
-            Map<String, String> map = (Map<String, String>) inputStream.readObject();
-            if (map.get("status").equals("100")) {
-                System.out.println("The active edge devices are:");
+        Map<String, String> info = new HashMap<>(Map.of("command", "AGG", "username", username, "scope", params[1],
+                "target", params[2], "operation", params[3]));
+        if (params.length == 5)
+            info.put("argument", params[4]);
+        try {
+            channel.write(info);
+            Map<String, String> map;
+            while ((map = channel.read()).get("status").equals("102"))
+                System.out.println("AGG: " + map.get("information"));
+            if (map.get("status").equals("100"))
+                System.out.println("AGG: " + map.get("information"));
+            else
+                System.out.println("AGG: ERROR - " + map.get("information"));
+        } catch (SocketException | EOFException | ClassNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            System.out.println("AGG: ERROR - Failed to run the aggregate query");
+        }
+    }
+
+    // Server statistics, only answered for the accounts the server lists in -Dserver.admins
+    private static void handleSTATS(String username, MessageChannel channel)
+            throws SocketException, EOFException, ClassNotFoundException {
+        try {
+            channel.write(Map.of("command", "STATS", "username", username));
+
+            Map<String, String> map = channel.read();
+            if (map.get("status").equals("100"))
                 System.out.print(map.get("content"));
-            } else if (map.get("status").equals("101"))
-                System.out.println("AED: ERROR - " + map.get("information"));
+            else
+                System.out.println("STATS: ERROR - " + map.get("information"));
         } catch (SocketException | EOFException | ClassNotFoundException e) {
             throw e;
         } catch (IOException e) {
-            System.out.println("DTE: ERROR - Failed to get list of active edge devices");
+            System.out.println("STATS: ERROR - Failed to get the server statistics");
         }
     }
 
-    private static void handleOUT(String username, ObjectOutputStream outputStream)
+    /**
+     * Download a stored data file to username-fileID.txt. The bytes are received into username-fileID.txt.part,
+     * so an interrupted download resumes where the part file ends.
+     */
+    private static void handleDWN(String[] params, String username, MessageChannel channel, Socket connection)
+            throws SocketException, EOFException, ClassNotFoundException {
+        if (params.length != 2) {
+            System.out.println("DWN: ERROR - DWN command requires ONE argument fileID. " +
+                    "Commands are like \"DWN 1\"");
+            return;
+        }
+
+        int fileID;
+        try {
+            fileID = Integer.parseInt(params[1]);
+        } catch (NumberFormatException e) {
+            System.out.println("DWN: ERROR - The fileID is not integer, you need to " +
+                    "specify the parameter as integers. Commands are like \"DWN 1\"");
+            return;
+        }
+        if (fileID < 1) {
+            System.out.println("DWN: ERROR - The fileID should be positive integer. Commands are like \"DWN 1\"");
+            return;
+        }
+
+        String filename = username + "-" + fileID + ".txt";
+        Path partFile = Path.of(filename + ".part");
+        Path versionFile = Path.of(filename + ".part.version"); // Version of the server file the part is from
+        try {
+            // A part file is only resumed with the version it came from, the server sends a changed file from 0
+            Map<String, String> info = new HashMap<>(Map.of("command", "DWN", "fileID", String.valueOf(fileID),
+                    "username", username, "offset", "0"));
+            long offset = 0;
+            if (Files.exists(partFile) && Files.exists(versionFile)) {
+                offset = Files.size(partFile);
+                info.put("offset", String.valueOf(offset));
+                info.put("version", Files.readString(versionFile).trim());
+            }
+            channel.write(info);
+            Map<String, String> map = channel.read();
+            if (map.get("status").equals("104")) {
+                Files.deleteIfExists(partFile);
+                Files.deleteIfExists(versionFile);
+            }
+            if (!map.get("status").equals("100")) {
+                System.out.println("DWN: ERROR - " + map.get("information"));
+                return;
+            }
+
+            long size = Long.parseLong(map.get("size"));
+            long length = Long.parseLong(map.get("length"));
+            if (Long.parseLong(map.get("offset")) != offset) {
+                if (offset > 0)
+                    System.out.println("DWN: " + filename + " changed on the server, downloading it again");
+                offset = 0;
+                Files.deleteIfExists(partFile);
+            } else if (offset > 0) {
+                System.out.println("DWN: Resuming " + filename + " at byte " + offset + " of " + size);
+            }
+            Files.writeString(versionFile, map.get("version"));
+
+            // The file bytes follow the response on the socket and are moved into the file by the kernel
+            SocketChannel socketChannel = connection.getChannel();
+            try (FileChannel file = FileChannel.open(partFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                for (long received = 0; received < length; ) {
+                    // On a blocking channel nothing transferred means the connection was closed
+                    long count = file.transferFrom(socketChannel, offset + received, length - received);
+                    if (count == 0)
+                        throw new EOFException();
+                    received += count;
+                }
+            }
+        } catch (SocketException | EOFException | ClassNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            System.out.println("DWN: ERROR - Failed to download " + filename);
+            return;
+        }
+
+        try {
+            // A server that stores data files packed sends them packed, they are written out as text here
+            if (SampleFile.format(partFile) != SampleFile.Format.TEXT) {
+                SampleFile.writeText(partFile, Path.of(filename));
+                Files.delete(partFile);
+            } else {
+                Files.move(partFile, Path.of(filename), StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.deleteIfExists(versionFile);
+            System.out.println("DWN: Downloaded " + filename);
+        } catch (IOException e) {
+            System.out.println("DWN: ERROR - Failed to save " + filename);
+        }
+    }
+
+    private static void printAED(Map<String, String> map) {
+        if (map.get("status").equals("100")) {
+            System.out.println("The active edge devices are:");
+            System.out.print(map.get("content"));
+        } else if (map.get("status").equals("101"))
+            System.out.println("AED: ERROR - " + map.get("information"));
+    }
+
+    /**
+     * Send several SCS, DTE and AED commands separated by ";" without waiting for each response, and print every
+     * response as it arrives. Commands on the same file are run by the server in the order they were given.
+     */
+    private static void handleBatch(String command, String username, MessageChannel channel)
+            throws SocketException, EOFException, ClassNotFoundException {
+        Pipeline pipeline = new Pipeline(channel);
+        try {
+            for (String part : command.split(";")) {
+                String[] params = part.trim().split("\\s+");
+                Map<String, String> info;
+                switch (params[0]) {
+                    case "SCS":
+                        info = buildSCS(params, username);
+                        break;
+                    case "DTE":
+                        info = buildDTE(params, username);
+                        break;
+                    case "AED":
+                        info = Map.of("command", "AED", "username", username);
+                        break;
+                    default:
+                        System.out.println("Error - \"" + part.trim() + "\" can not be sent in a batch, only SCS, " +
+                                "DTE and AED can.");
+                        info = null;
+                }
+                if (info == null)
+                    continue;
+
+                // The server stops reading once its queue for this connection is full, so read before sending more
+                while (pipeline.pending() >= PIPELINE_DEPTH)
+                    printResponse(pipeline.collect());
+                pipeline.submit(info);
+            }
+            while (pipeline.pending() > 0)
+                printResponse(pipeline.collect());
+        } catch (SocketException | EOFException | ClassNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            System.out.println("Error - Failed to send the batch of commands");
+        }
+    }
+
+    private static void printResponse(Map<String, String> map) {
+        switch (map.get("command")) {
+            case "SCS":
+                printSCS(map);
+                break;
+            case "DTE":
+                printDTE(map);
+                break;
+            case "AED":
+                printAED(map);
+                break;
+        }
+    }
+
+    private static void handleOUT(String username, MessageChannel channel)
             throws SocketException, EOFException {
         try {
             Map<String, String> info = Map.of("command", "OUT", "username", username);
-            outputStream.writeObject(info);
-            outputStream.flush();
+            channel.write(info);
 
             System.out.println("OUT: Bye! " + username);
         } catch (SocketException | EOFException e) {
@@ -471,9 +1168,8 @@ public class Client {
         }
     }
 
-    @SuppressWarnings("unchecked")
-    private static void handleUVF(String[] params, String username, ObjectInputStream inputStream,
-                                  ObjectOutputStream outputStream, DatagramSocket socket) throws SocketException,
+    private static void handleUVF(String[] params, String username, MessageChannel channel,
+                                  DatagramSocket socket) throws SocketException,
             EOFException, ClassNotFoundException{
 
         if (params.length != 3) {
@@ -482,37 +1178,37 @@ public class Client {
             return;
         }
 
-        String address, port;
+        File file = new File(params[2]);
+        if (!file.exists()) {
+            System.out.println("UVF: ERROR - File " + params[2] + " not found.");
+            return;
+        }
+
         try {
-            Map<String, String> info = Map.of("command", "AED", "username", username);
-            outputStream.writeObject(info);
-            outputStream.flush();
-
-            Map<String, String> map = (Map<String, String>) inputStream.readObject();
-            String[] deviceInfo = map.get("content").split("\n");
-
-            boolean found = false;
-            for (String device: deviceInfo) {
-                String[] detail = device.split(", ");
-                if (detail[0].substring(detail[0].indexOf(" ") + 1).equals(params[1])) {
-                    found = true;
-                    address = detail[2].substring(detail[2].lastIndexOf(" ") + 1);
-                    port = detail[3].substring(detail[3].lastIndexOf(" ") + 1);
-
-                    File file = new File(params[2]);
-                    if (!file.exists()) {
-                        System.out.println("UVF: ERROR - File " + params[2] + " not found.");
-                        break;
-                    }
+            // While subscribed the directory is up to date, otherwise the endpoint is cached or resolved
+            InetSocketAddress endpoint = SUBSCRIBED ? DIRECTORY.get(params[1]) : ENDPOINTS.get(params[1]);
+            if (endpoint == null && SUBSCRIBED) {
+                System.out.println("UVF: " + params[1] + " is offline.");
+                return;
+            } else if (endpoint == null) {
+                Map<String, String> info = Map.of("command", "LKP", "username", username, "device", params[1]);
+                channel.write(info);
 
-                    System.out.println("Start uploading " + params[2] + " to " + params[1]);
-                    new UDPSender(socket, params[2], username, params[1], InetAddress.getByName(address), Integer.parseInt(port))
-                            .start();
-                    break;
+                Map<String, String> map = channel.read();
+                if (map.get("status").equals("104")) {
+                    System.out.println("UVF: " + params[1] + " is offline.");
+                    return;
+                } else if (!map.get("status").equals("100")) {
+                    System.out.println("UVF: ERROR - " + map.get("information"));
+                    return;
                 }
+                endpoint = new InetSocketAddress(InetAddress.getByName(map.get("address")),
+                        Integer.parseInt(map.get("port")));
+                ENDPOINTS.put(params[1], endpoint);
             }
-            if (!found)
-                System.out.println("UVF: " + params[1] + " is offline.");
+
+            System.out.println("Start uploading " + params[2] + " to " + params[1]);
+            new UDPSender(socket, params[2], username, params[1], endpoint).start();
         } catch (SocketException | EOFException e) {
             throw e;
         } catch (IOException e) {
@@ -524,7 +1220,7 @@ public class Client {
     private static void printWithWaitingFlag(String content) {
         if (WAITING_FLAG) {
             System.out.println("\n" + content);
-            System.out.print("Enter one of the following commands (EDG, UED, SCS, DTE, AED, UVF, OUT): ");
+            System.out.print(COMMAND_PROMPT);
         } else
             System.out.println(content);
     }
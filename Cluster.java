@@ -0,0 +1,242 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The servers of a cluster, each a separate process with its own working directory, and the usernames each one owns.
+ *
+ * Usernames are assigned to the shards by consistent hashing of the shard addresses, so every server computes the
+ * same owner without asking the others. A server only logs in its own users; everything a user stores, the active
+ * device entry and the logs stay on that shard. Requests that need the other shards (the AED listing of every device,
+ * LKP of a device on another shard, AGG over every user's files) are sent to them as SHARD messages on the ordinary
+ * client port, carrying the cluster key; each shard keeps a pool of idle connections to the others, and a fan-out asks
+ * all of them in parallel.
+ */
+class Cluster {
+    private static final int POINTS_PER_SHARD = 160;
+
+    private static class Connection {
+        final Socket socket;
+        final MessageChannel channel;
+
+        Connection(Socket socket, MessageChannel channel) {
+            this.socket = socket;
+            this.channel = channel;
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    private final List<String> shards; // host:port of every shard
+    private final int self;
+    private final String key;
+    private final int timeoutMillis;
+    private final int aggregateTimeoutMillis;
+    private final ConsistentHash ring;
+    private final List<Queue<Connection>> idle = new ArrayList<>();
+    private final ExecutorService fanOut;
+
+    /**
+     * @param shards        host:port of every shard of the cluster, including this one
+     * @param self          index of this shard
+     * @param key           shared by the shards, a SHARD message is only answered if it carries the key
+     * @param timeoutMillis how long a shard waits for another to answer
+     * @param aggregateTimeoutMillis how long a shard waits for another to answer an aggregate query, 0 for no limit
+     */
+    Cluster(List<String> shards, int self, String key, int timeoutMillis, int aggregateTimeoutMillis) {
+        this.shards = List.copyOf(shards);
+        this.self = self;
+        this.key = key;
+        this.timeoutMillis = timeoutMillis;
+        this.aggregateTimeoutMillis = aggregateTimeoutMillis;
+        ring = new ConsistentHash(this.shards, POINTS_PER_SHARD);
+        for (int i = 0; i < shards.size(); i++)
+            idle.add(new ConcurrentLinkedQueue<>());
+        fanOut = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "cluster-request");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * The cluster from -Dserver.cluster (host:port of every shard, comma-separated), -Dserver.shard (index of this
+     * shard, by default the one listed with this server's port), -Dserver.clusterKey, -Dserver.clusterTimeoutMillis and
+     * -Dserver.clusterAggregateTimeoutMillis.
+     *
+     * @return the cluster, or null if the server runs on its own
+     */
+    static Cluster fromProperties(int port) {
+        String list = System.getProperty("server.cluster");
+        if (list == null || list.isBlank())
+            return null;
+        List<String> shards = new ArrayList<>();
+        for (String shard : list.split(","))
+            shards.add(shard.trim());
+
+        int self = Integer.getInteger("server.shard", -1);
+        for (int i = 0; self < 0 && i < shards.size(); i++) {
+            if (shards.get(i).endsWith(":" + port))
+                self = i;
+        }
+        if (self < 0 || self >= shards.size())
+            throw new IllegalArgumentException("Port " + port + " is not in -Dserver.cluster, set -Dserver.shard");
+        return new Cluster(shards, self, System.getProperty("server.clusterKey", ""),
+                Integer.getInteger("server.clusterTimeoutMillis", 2000),
+                Integer.getInteger("server.clusterAggregateTimeoutMillis", 600_000));
+    }
+
+    int size() {
+        return shards.size();
+    }
+
+    boolean owns(String username) {
+        return ring.shard(username) == self;
+    }
+
+    /**
+     * @return host:port of the shard that owns the user
+     */
+    String owner(String username) {
+        return shards.get(ring.shard(username));
+    }
+
+    boolean authorized(String key) {
+        return this.key.equals(key);
+    }
+
+    /**
+     * @return the read timeout for requests that scan data files, which take far longer than a lookup
+     */
+    int aggregateTimeoutMillis() {
+        return aggregateTimeoutMillis;
+    }
+
+    /**
+     * Send a SHARD message to the shard that owns the user.
+     *
+     * @return the answer
+     * @throws IOException if the shard can not be reached or does not answer in time
+     */
+    Map<String, String> request(String username, Map<String, String> message) throws IOException {
+        return request(username, message, timeoutMillis);
+    }
+
+    /**
+     * {@link #request(String, Map)} waiting up to readTimeoutMillis for the answer (0 for no limit).
+     */
+    Map<String, String> request(String username, Map<String, String> message, int readTimeoutMillis)
+            throws IOException {
+        return request(ring.shard(username), message, readTimeoutMillis);
+    }
+
+    /**
+     * Send a SHARD message to every other shard at once.
+     *
+     * @return the answers in shard order, null for the shards that could not be reached or did not answer in time
+     */
+    List<Map<String, String>> requestAll(Map<String, String> message) {
+        return requestAllAsync(message, timeoutMillis).join();
+    }
+
+    /**
+     * {@link #requestAll(Map)} without waiting, so this shard can do its own part of the work meanwhile, and waiting up
+     * to readTimeoutMillis for each answer (0 for no limit).
+     */
+    CompletableFuture<List<Map<String, String>>> requestAllAsync(Map<String, String> message, int readTimeoutMillis) {
+        List<CompletableFuture<Map<String, String>>> answers = new ArrayList<>();
+        for (int shard = 0; shard < shards.size(); shard++) {
+            if (shard == self)
+                continue;
+            int target = shard;
+            answers.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return request(target, message, readTimeoutMillis);
+                } catch (IOException e) {
+                    ServerLog.error("Shard {} did not answer: {}", shards.get(target), e.getMessage());
+                    return null;
+                }
+            }, fanOut));
+        }
+
+        return CompletableFuture.allOf(answers.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            List<Map<String, String>> result = new ArrayList<>();
+            for (CompletableFuture<Map<String, String>> answer : answers)
+                result.add(answer.join());
+            return result;
+        });
+    }
+
+    // A pooled connection may have been closed by the other shard meanwhile, so a request that failed on one is sent
+    // once more on a new connection: if writing it failed, or if the connection was closed or reset instead of
+    // answering. A request that timed out is not sent again, the other shard may still be working on it.
+    private Map<String, String> request(int shard, Map<String, String> message, int readTimeoutMillis)
+            throws IOException {
+        Map<String, String> keyed = new HashMap<>(message);
+        keyed.put("command", "SHARD");
+        keyed.put("key", key);
+
+        Connection connection = idle.get(shard).poll();
+        while (true) {
+            boolean pooled = connection != null;
+            if (!pooled)
+                connection = connect(shard);
+            boolean written = false;
+            try {
+                connection.socket.setSoTimeout(readTimeoutMillis);
+                connection.channel.write(keyed);
+                written = true;
+                Map<String, String> answer = connection.channel.read();
+                idle.get(shard).add(connection);
+                return answer;
+            } catch (IOException | ClassNotFoundException e) {
+                connection.close();
+                boolean closed = e instanceof EOFException || e instanceof SocketException;
+                if (!pooled || written && !closed)
+                    throw e instanceof IOException ? (IOException) e : new IOException(e);
+                connection = null;
+            }
+        }
+    }
+
+    private Connection connect(int shard) throws IOException {
+        String address = shards.get(shard);
+        int colon = address.lastIndexOf(':');
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(address.substring(0, colon),
+                    Integer.parseInt(address.substring(colon + 1))), timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            socket.setTcpNoDelay(true);
+            MessageChannel channel = MessageChannel.ObjectStreamChannel.connect(MessageChannel.input(socket),
+                    MessageChannel.output(socket));
+            channel.read(); // Username prompt
+            return new Connection(socket, channel);
+        } catch (IOException | ClassNotFoundException e) {
+            socket.close();
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "shard " + self + " of " + shards;
+    }
+}
@@ -0,0 +1,64 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Consistent hashing of usernames onto the shards of a cluster.
+ *
+ * Every shard is placed at a number of points on a 64-bit ring, hashed from its name and the point's number, and a
+ * username belongs to the shard of the first point at or after the username's hash (wrapping around). With enough
+ * points per shard every shard gets a near-equal share of the users, and adding or removing a shard only moves the
+ * users of the ring segments it takes over or gives up; the rest keep their shard and their files. The ring is a sorted
+ * array, so a lookup is one hash and a binary search.
+ */
+class ConsistentHash {
+    private final long[] points;
+    private final int[] shards; // Shard of each point
+
+    /**
+     * @param names         names of the shards, the ring only depends on these and not on their order
+     * @param pointsPerShard points of each shard on the ring
+     */
+    ConsistentHash(List<String> names, int pointsPerShard) {
+        int count = names.size() * pointsPerShard;
+        long[][] ring = new long[count][];
+        for (int shard = 0; shard < names.size(); shard++) {
+            for (int point = 0; point < pointsPerShard; point++)
+                ring[shard * pointsPerShard + point] = new long[]{hash(names.get(shard) + "#" + point), shard};
+        }
+        Arrays.sort(ring, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) :
+                names.get((int) a[1]).compareTo(names.get((int) b[1])));
+
+        points = new long[count];
+        shards = new int[count];
+        for (int i = 0; i < count; i++) {
+            points[i] = ring[i][0];
+            shards[i] = (int) ring[i][1];
+        }
+    }
+
+    /**
+     * @return the index of the shard that owns the key
+     */
+    int shard(String key) {
+        int at = Arrays.binarySearch(points, hash(key));
+        if (at < 0)
+            at = -at - 1;
+        return shards[at == points.length ? 0 : at];
+    }
+
+    // 64-bit FNV-1a of the UTF-8 bytes, followed by the MurmurHash3 finalizer to spread the bits over the ring
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,103 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.SplittableRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Generates EDG data files: one random integer from 1 to 9999 per line, as PrintWriter.println writes them.
+ *
+ * The samples are split into chunks of CHUNK_SAMPLES, each with its own SplittableRandom split off a generator for the
+ * seed, so the file only depends on the seed and not on the number of threads. The threads format their chunks
+ * straight into byte buffers and write them at their position in the file. A chunk's position is known once all
+ * earlier chunks are generated, so writing overlaps with generating the chunks after it.
+ */
+class DataGenerator {
+    private static final int CHUNK_SAMPLES = 1 << 20;
+    private static final int MAX_VALUE = 9999;
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes();
+    private static final int MAX_LINE = String.valueOf(MAX_VALUE).length() + LINE_SEPARATOR.length;
+
+    private final int threads;
+
+    DataGenerator(int threads) {
+        this.threads = threads;
+    }
+
+    void generate(Path file, long samples, long seed) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        // Two buffers per thread, so a thread can generate its next chunk while the previous one waits to be written
+        BlockingQueue<ByteBuffer> buffers = new ArrayBlockingQueue<>(2 * threads);
+        for (int i = 0; i < 2 * threads; i++)
+            buffers.add(ByteBuffer.allocate(CHUNK_SAMPLES * MAX_LINE));
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            SplittableRandom seedRandom = new SplittableRandom(seed);
+            CompletableFuture<Long> end = CompletableFuture.completedFuture(0L);
+            CompletableFuture<?> written = CompletableFuture.completedFuture(null);
+            AtomicBoolean failed = new AtomicBoolean(); // Set by a write that threw, before it returns its buffer
+            for (long first = 0; first < samples; first += CHUNK_SAMPLES) {
+                int count = (int) Math.min(CHUNK_SAMPLES, samples - first);
+                SplittableRandom random = seedRandom.split();
+                ByteBuffer buffer = buffers.take();
+                // Stop early instead of generating the rest of a file that cannot be written
+                if (failed.get())
+                    break;
+
+                CompletableFuture<ByteBuffer> chunk = CompletableFuture.supplyAsync(
+                        () -> fill(buffer, random, count), executor);
+                CompletableFuture<Long> start = end;
+                end = start.thenCombine(chunk, (position, filled) -> position + filled.remaining());
+                CompletableFuture<Void> write = chunk.thenAcceptBothAsync(start, (filled, position) -> {
+                    try {
+                        while (filled.hasRemaining())
+                            channel.write(filled, position + filled.position());
+                    } catch (IOException e) {
+                        failed.set(true);
+                        throw new CompletionException(e);
+                    } finally {
+                        buffers.add(filled);
+                    }
+                }, executor);
+                written = CompletableFuture.allOf(written, write);
+            }
+            written.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while generating " + file, e);
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Format count samples into the buffer, digits are written from the end of each number backwards
+    private static ByteBuffer fill(ByteBuffer buffer, SplittableRandom random, int count) {
+        buffer.clear();
+        byte[] bytes = buffer.array();
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            int value = random.nextInt(1, MAX_VALUE + 1);
+            int digits = value >= 1000 ? 4 : value >= 100 ? 3 : value >= 10 ? 2 : 1;
+            for (int j = position + digits - 1; j >= position; j--) {
+                bytes[j] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            position += digits;
+            for (byte b : LINE_SEPARATOR)
+                bytes[position++] = b;
+        }
+        buffer.limit(position);
+        return buffer;
+    }
+}
@@ -0,0 +1,336 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.function.IntConsumer;
+
+/**
+ * Statistics of an uploaded data file, computed while the file is written and kept next to it in a .summary file,
+ * so SCS can answer without reading the data file again.
+ *
+ * The summary records the size of the data file it was computed from. A summary whose size does not match the data
+ * file any more, a summary written in an older format, or a data file without summary, is summarised again from the
+ * data file.
+ */
+class DataSummary {
+    private static final int VERSION = 2;
+
+    long lines = 0;
+    long count = 0;
+    long sum = 0;
+    int min = Integer.MAX_VALUE;
+    int max = Integer.MIN_VALUE;
+    boolean valid = true; // false if any line is not an integer
+
+    // Running mean and sum of squared differences from it (Welford's method)
+    double mean = 0;
+    double m2 = 0;
+    QuantileSketch sketch = new QuantileSketch();
+
+    private final IntConsumer listener;
+
+    // Parser state of the line currently being read
+    private long value = 0;
+    private boolean negative = false;
+    private int length = 0;
+    private boolean digits = false;
+    private boolean invalidLine = false;
+    private boolean lastWasCR = false;
+
+    DataSummary() {
+        this(null);
+    }
+
+    /**
+     * @param listener receives every value of the data file in order, may be null
+     */
+    DataSummary(IntConsumer listener) {
+        this.listener = listener;
+    }
+
+    static Path summaryFile(Path dataFile) {
+        return dataFile.resolveSibling(dataFile.getFileName().toString().replaceFirst("\\.txt$", "") + ".summary");
+    }
+
+    /**
+     * Get the summary of a data file, summarising the file again if there is no up to date summary. Readers of the
+     * same file may do this at once; if storing the new summary fails, it is still returned and stored next time.
+     *
+     * @throws NoSuchFileException if the data file does not exist
+     */
+    static DataSummary of(Path dataFile) throws IOException {
+        long bytes = Files.size(dataFile);
+        DataSummary summary = load(dataFile, bytes);
+        if (summary == null) {
+            summary = compute(dataFile);
+            try {
+                summary.save(dataFile, bytes);
+            } catch (IOException e) {
+                ServerLog.error("Failed to store the summary of {}: {}", dataFile, e.getMessage());
+            }
+        }
+        return summary;
+    }
+
+    /**
+     * @return the stored summary of the data file, or null if there is none for a file of this size
+     */
+    static DataSummary load(Path dataFile, long bytes) {
+        DataSummary summary = new DataSummary();
+        long summarisedBytes = -1;
+        int version = 0;
+        try (BufferedReader reader = Files.newBufferedReader(summaryFile(dataFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] params = line.split(" ");
+                if (params[0].equals("version"))
+                    version = Integer.parseInt(params[1]);
+                else if (params[0].equals("bytes"))
+                    summarisedBytes = Long.parseLong(params[1]);
+                else
+                    summary.set(params[0], params[1]);
+            }
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+        return version == VERSION && summarisedBytes == bytes ? summary : null;
+    }
+
+    /**
+     * @param encoded as returned by {@link #encode()}
+     * @throws IllegalArgumentException if the summary can not be parsed
+     */
+    static DataSummary decode(String encoded) {
+        DataSummary summary = new DataSummary();
+        try {
+            for (String line : encoded.split("\n")) {
+                String[] params = line.split(" ");
+                if (params.length == 2)
+                    summary.set(params[0], params[1]);
+            }
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid summary", e);
+        }
+        return summary;
+    }
+
+    private void set(String name, String value) {
+        switch (name) {
+            case "lines":
+                lines = Long.parseLong(value);
+                break;
+            case "count":
+                count = Long.parseLong(value);
+                break;
+            case "sum":
+                sum = Long.parseLong(value);
+                break;
+            case "min":
+                min = Integer.parseInt(value);
+                break;
+            case "max":
+                max = Integer.parseInt(value);
+                break;
+            case "valid":
+                valid = Boolean.parseBoolean(value);
+                break;
+            case "mean":
+                mean = Double.parseDouble(value);
+                break;
+            case "m2":
+                m2 = Double.parseDouble(value);
+                break;
+            case "sketch":
+                sketch = QuantileSketch.decode(value);
+                break;
+        }
+    }
+
+    static DataSummary compute(Path dataFile) throws IOException {
+        return scan(dataFile, null);
+    }
+
+    /**
+     * Summarise a data file of any SampleFile format in one pass, handing every value to the listener as well.
+     */
+    static DataSummary scan(Path dataFile, IntConsumer listener) throws IOException {
+        DataSummary summary = new DataSummary(listener);
+        if (SampleFile.format(dataFile) != SampleFile.Format.TEXT) {
+            SampleFile.forEachPacked(dataFile, summary::acceptValue);
+            return summary;
+        }
+
+        char[] buffer = new char[8192];
+        try (Reader reader = Files.newBufferedReader(dataFile)) {
+            int read;
+            while ((read = reader.read(buffer)) != -1)
+                summary.accept(buffer, 0, read);
+        }
+        summary.finish();
+        return summary;
+    }
+
+    /**
+     * Write the summary through a part file of its own, so concurrent saves of the same summary each replace the
+     * .summary file whole.
+     */
+    void save(Path dataFile, long bytes) throws IOException {
+        Path file = summaryFile(dataFile);
+        Path partFile = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName() + ".", ".part");
+        try {
+            String content = "version " + VERSION + "\n" +
+                    "bytes " + bytes + "\n" +
+                    encode();
+            Files.writeString(partFile, content, StandardCharsets.UTF_8);
+            Files.move(partFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(partFile);
+        }
+    }
+
+    /**
+     * @return the statistics as "name value" lines, the body of the .summary file
+     */
+    String encode() {
+        return "lines " + lines + "\n" +
+                "count " + count + "\n" +
+                "sum " + sum + "\n" +
+                "min " + min + "\n" +
+                "max " + max + "\n" +
+                "valid " + valid + "\n" +
+                "mean " + mean + "\n" +
+                "m2 " + m2 + "\n" +
+                "sketch " + sketch.encode() + "\n";
+    }
+
+    /**
+     * Add the statistics of another data file, as if its values had been appended to this one. The mean and squared
+     * differences are combined with Chan's formula, so the result matches a single pass over both files.
+     */
+    void merge(DataSummary other) {
+        lines += other.lines;
+        valid &= other.valid;
+        if (other.count == 0)
+            return;
+        long total = count + other.count;
+        double delta = other.mean - mean;
+        mean += delta * other.count / total;
+        m2 += other.m2 + delta * delta * count * other.count / total;
+        count = total;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        sketch.merge(other.sketch);
+    }
+
+    static void delete(Path dataFile) throws IOException {
+        Files.deleteIfExists(summaryFile(dataFile));
+    }
+
+    void accept(String content) {
+        accept(content.toCharArray(), 0, content.length());
+    }
+
+    /**
+     * Parse the next part of the data file. Lines are split like BufferedReader.readLine and each line has to be an
+     * integer as accepted by Integer.parseInt.
+     */
+    void accept(char[] content, int offset, int count) {
+        for (int i = offset; i < offset + count; i++) {
+            char c = content[i];
+            if (c == '\n') {
+                if (!lastWasCR)
+                    endLine();
+                lastWasCR = false;
+                continue;
+            }
+            lastWasCR = false;
+            if (c == '\r') {
+                endLine();
+                lastWasCR = true;
+            } else if (c >= '0' && c <= '9') {
+                // Stop accumulating once the value is out of int range, the line is invalid anyway
+                if (value <= Integer.MAX_VALUE + 1L)
+                    value = value * 10 + (c - '0');
+                digits = true;
+                length++;
+            } else if ((c == '-' || c == '+') && length == 0) {
+                negative = c == '-';
+                length++;
+            } else {
+                invalidLine = true;
+                length++;
+            }
+        }
+    }
+
+    /**
+     * Add the value of one line, for data files that hold the values rather than text.
+     */
+    void acceptValue(int number) {
+        lines++;
+        add(number);
+    }
+
+    /**
+     * Complete the summary once the whole data file was parsed.
+     */
+    void finish() {
+        if (length > 0)
+            endLine();
+    }
+
+    double average() {
+        return count == 0 ? 0.0 : (double) sum / count;
+    }
+
+    int min() {
+        return count == 0 ? 0 : min;
+    }
+
+    int max() {
+        return count == 0 ? 0 : max;
+    }
+
+    /**
+     * @return the population standard deviation
+     */
+    double standardDeviation() {
+        return count == 0 ? 0.0 : Math.sqrt(m2 / count);
+    }
+
+    /**
+     * @return the value at the percentile, within QuantileSketch.RELATIVE_ACCURACY of the exact one
+     */
+    long percentile(double percentile) {
+        return Math.max(min(), Math.min(max(), Math.round(sketch.quantile(percentile))));
+    }
+
+    private void endLine() {
+        lines++;
+        long number = negative ? -value : value;
+        if (invalidLine || !digits || number < Integer.MIN_VALUE || number > Integer.MAX_VALUE) {
+            valid = false;
+        } else {
+            add((int) number);
+        }
+        value = 0;
+        negative = false;
+        length = 0;
+        digits = false;
+        invalidLine = false;
+    }
+
+    private void add(int number) {
+        count++;
+        sum += number;
+        min = Math.min(min, number);
+        max = Math.max(max, number);
+
+        double delta = number - mean;
+        mean += delta / count;
+        m2 += delta * (number - mean);
+        sketch.add(number);
+        if (listener != null)
+            listener.accept(number);
+    }
+}
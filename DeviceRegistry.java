@@ -0,0 +1,246 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The active edge devices, kept in memory as the source of truth for AED and LKP.
+ *
+ * Every login and logout is appended to a journal through the AuditLog. Compaction writes the registry to the log file
+ * in the edge-device-log.txt format ("seq; active from; username; IP address; UDP port") and starts an empty journal.
+ * On startup the registry is rebuilt from the log file followed by the journal.
+ */
+class DeviceRegistry {
+    static final DateTimeFormatter ACTIVE_FROM = DateTimeFormatter.ofPattern("dd MMMM yyyy HH:mm:ss", Locale.US);
+    // Oldest login first, for devices that come from different registries
+    static final Comparator<Device> BY_ACTIVE_FROM = Comparator.comparing(
+            device -> LocalDateTime.parse(device.activeFrom, ACTIVE_FROM));
+
+    static class Device {
+        final long order; // Login order, AED lists the devices in this order
+        final String username;
+        final String activeFrom;
+        final String address;
+        final String udpPort;
+
+        Device(long order, String username, String activeFrom, String address, String udpPort) {
+            this.order = order;
+            this.username = username;
+            this.activeFrom = activeFrom;
+            this.address = address;
+            this.udpPort = udpPort;
+        }
+    }
+
+    private final Path logFile;
+    private final Path journalFile;
+    private final AuditLog auditLog;
+
+    private final ConcurrentSkipListMap<Long, Device> devices = new ConcurrentSkipListMap<>();
+    private final Map<String, Device> byUsername = new ConcurrentHashMap<>();
+    private final AtomicLong nextOrder = new AtomicLong(1);
+
+    // Logins and logouts hold the read lock, so they only exclude compaction and not each other
+    private final ReadWriteLock compactionLock = new ReentrantReadWriteLock();
+    private final AtomicLong journalRecords = new AtomicLong();
+
+    private DeviceRegistry(Path logFile, Path journalFile, AuditLog auditLog) {
+        this.logFile = logFile;
+        this.journalFile = journalFile;
+        this.auditLog = auditLog;
+    }
+
+    static DeviceRegistry open(Path logFile, Path journalFile, AuditLog auditLog) throws IOException {
+        DeviceRegistry registry = new DeviceRegistry(logFile, journalFile, auditLog);
+        registry.recover();
+        return registry;
+    }
+
+    void login(String username, String activeFrom, String address, String udpPort) {
+        compactionLock.readLock().lock();
+        try {
+            Device device = new Device(nextOrder.getAndIncrement(), username, activeFrom, address, udpPort);
+            add(device);
+            append(join("LOGIN", String.valueOf(device.order), activeFrom, username, address, udpPort));
+        } finally {
+            compactionLock.readLock().unlock();
+        }
+    }
+
+    void logout(String username) {
+        compactionLock.readLock().lock();
+        try {
+            remove(username);
+            append(join("LOGOUT", username));
+        } finally {
+            compactionLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the active device of the user, or null if the user has none
+     */
+    Device device(String username) {
+        return byUsername.get(username);
+    }
+
+    /**
+     * @return the active devices in login order, a live view
+     */
+    Collection<Device> devices() {
+        return Collections.unmodifiableCollection(devices.values());
+    }
+
+    /**
+     * @return whether the user's device is active with this IP address and UDP port
+     */
+    boolean isActive(String username, String address, String udpPort) {
+        Device device = byUsername.get(username);
+        return device != null && device.address.equals(address) && device.udpPort.equals(udpPort);
+    }
+
+    /**
+     * @return the AED listing of all active devices except the one of the given user
+     */
+    String activeDevices(String username) {
+        return listing(devices.values(), username);
+    }
+
+    /**
+     * @return the AED listing of the devices except the one of the given user
+     */
+    static String listing(Iterable<Device> devices, String username) {
+        StringBuilder result = new StringBuilder();
+        for (Device device : devices) {
+            if (!device.username.equals(username))
+                result.append("Username: ")
+                        .append(device.username)
+                        .append(", Active From: ")
+                        .append(device.activeFrom)
+                        .append(", IP Address: ")
+                        .append(device.address)
+                        .append(", UDP Port: ")
+                        .append(device.udpPort)
+                        .append("\n");
+        }
+        return result.length() == 0 ? "No other active edge devices\n" : result.toString();
+    }
+
+    /**
+     * Write the registry to the log file and start a new journal. Does nothing if the journal is empty.
+     */
+    void compact() throws IOException {
+        compactionLock.writeLock().lock();
+        try {
+            if (journalRecords.get() == 0)
+                return;
+
+            // The log file replaces every journal record, so they must all be written before the journal is emptied.
+            // Records are written in queue order, so an empty record completes once all earlier ones are written.
+            try {
+                auditLog.append(journalFile, "").join();
+            } catch (CompletionException e) {
+                throw new IOException("Journal record was not written", e.getCause());
+            }
+
+            Path partFile = logFile.resolveSibling(logFile.getFileName() + ".part");
+            try (Writer writer = Files.newBufferedWriter(partFile, StandardCharsets.UTF_8)) {
+                int seq = 1;
+                for (Device device : devices.values())
+                    writer.write(record(seq++, device));
+            }
+            Files.move(partFile, logFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            // A crash before the journal is truncated only replays records the log file already contains. The
+            // AuditLog appends to the journal in append mode, so it carries on at the new end of the file.
+            try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.WRITE)) {
+                channel.truncate(0);
+            }
+            journalRecords.set(0);
+        } finally {
+            compactionLock.writeLock().unlock();
+        }
+    }
+
+    private void recover() throws IOException {
+        if (Files.exists(logFile)) {
+            try (BufferedReader reader = Files.newBufferedReader(logFile, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null)
+                    add(parse(line));
+            }
+        }
+
+        if (Files.exists(journalFile)) {
+            try (BufferedReader reader = Files.newBufferedReader(journalFile, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] params = line.split("; ");
+                    if (params[0].equals("LOGIN") && params.length == 6)
+                        add(new Device(Long.parseLong(params[1]), params[3], params[2], params[4], params[5]));
+                    else if (params[0].equals("LOGOUT") && params.length == 2)
+                        remove(params[1]);
+                    journalRecords.incrementAndGet();
+                }
+            }
+        }
+
+        if (!devices.isEmpty())
+            nextOrder.set(devices.lastKey() + 1);
+    }
+
+    // A device logging in again replaces its previous entry, and logging out removes it
+    // (compute keeps both maps consistent when the same user logs in and out concurrently)
+    private void add(Device device) {
+        byUsername.compute(device.username, (username, previous) -> {
+            if (previous != null)
+                devices.remove(previous.order);
+            devices.put(device.order, device);
+            return device;
+        });
+    }
+
+    private void remove(String username) {
+        byUsername.computeIfPresent(username, (key, device) -> {
+            devices.remove(device.order);
+            return null;
+        });
+    }
+
+    private void append(String record) {
+        auditLog.append(journalFile, record);
+        journalRecords.incrementAndGet();
+    }
+
+    /**
+     * @return the device as a line of edge-device-log.txt, with seq as its sequence number
+     */
+    static String record(long seq, Device device) {
+        return join(String.valueOf(seq), device.activeFrom, device.username, device.address, device.udpPort);
+    }
+
+    /**
+     * @return the device of a line of edge-device-log.txt, its sequence number taken as the login order
+     */
+    static Device parse(String record) {
+        String[] params = record.split("; ");
+        return new Device(Long.parseLong(params[0]), params[2], params[1], params[3], params[4]);
+    }
+
+    private static String join(String... args) {
+        return String.join("; ", args) + "\n";
+    }
+}
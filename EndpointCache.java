@@ -0,0 +1,56 @@
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * UDP endpoints of other devices as the server's LKP command resolved them, so repeated UVF transfers to the same
+ * device need no request to the server.
+ *
+ * An entry is used for the time to live and then resolved again, since the device may have logged in again from
+ * another address in the meantime. A sender that gets no answer from an endpoint invalidates it, so the next transfer
+ * asks the server before the entry expires.
+ */
+class EndpointCache {
+    private static class Entry {
+        final InetSocketAddress endpoint;
+        final long expires; // System.nanoTime()
+
+        Entry(InetSocketAddress endpoint, long expires) {
+            this.endpoint = endpoint;
+            this.expires = expires;
+        }
+    }
+
+    private final long ttlNanos;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    EndpointCache(long ttlNanos) {
+        this.ttlNanos = ttlNanos;
+    }
+
+    /**
+     * @return the cached endpoint of the device, or null if it is not cached or expired
+     */
+    InetSocketAddress get(String device) {
+        Entry entry = entries.get(device);
+        if (entry == null)
+            return null;
+        if (System.nanoTime() - entry.expires >= 0) {
+            entries.remove(device, entry);
+            return null;
+        }
+        return entry.endpoint;
+    }
+
+    void put(String device, InetSocketAddress endpoint) {
+        if (ttlNanos > 0)
+            entries.put(device, new Entry(endpoint, System.nanoTime() + ttlNanos));
+    }
+
+    /**
+     * Forget the endpoint of the device, if it is still the one that failed.
+     */
+    void invalidate(String device, InetSocketAddress endpoint) {
+        entries.computeIfPresent(device, (key, entry) -> entry.endpoint.equals(endpoint) ? null : entry);
+    }
+}
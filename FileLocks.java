@@ -0,0 +1,59 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Read/write locks for the stored data files, keyed by (username, fileID).
+ *
+ * Every file that is in use has its own lock, so operations on unrelated files never wait for each other. An entry
+ * is created by the first thread that locks a file and removed again by the last one that unlocks it, so the table
+ * only holds the files that are in use at the moment.
+ */
+class FileLocks {
+
+    /**
+     * A held lock, released by close() so it can be used with try-with-resources. The body of such a try usually
+     * never refers to the lock, so the methods holding one suppress javac's "try" lint warning.
+     */
+    interface Held extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private static class Entry {
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        int users = 0; // Threads holding or waiting for the lock, only changed inside compute
+    }
+
+    private final Map<String, Entry> locks = new ConcurrentHashMap<>();
+
+    /**
+     * Lock a file for reading, other readers of the same file may proceed at the same time.
+     */
+    Held read(String username, String fileID) {
+        return acquire(username + "/" + fileID, false);
+    }
+
+    /**
+     * Lock a file exclusively.
+     */
+    Held write(String username, String fileID) {
+        return acquire(username + "/" + fileID, true);
+    }
+
+    private Held acquire(String key, boolean exclusive) {
+        Entry entry = locks.compute(key, (k, existing) -> {
+            Entry e = existing == null ? new Entry() : existing;
+            e.users++;
+            return e;
+        });
+
+        Lock lock = exclusive ? entry.lock.writeLock() : entry.lock.readLock();
+        lock.lock();
+        return () -> {
+            lock.unlock();
+            locks.compute(key, (k, e) -> --e.users == 0 ? null : e);
+        };
+    }
+}
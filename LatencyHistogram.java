@@ -0,0 +1,90 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in nanoseconds with log-linear buckets (as in HdrHistogram).
+ *
+ * Durations below 32 ns have a bucket each; above that every power of two is split into 32 buckets, so a bucket is
+ * at most 1/32 of its lower bound wide and a percentile, estimated by the middle of its bucket, is within 1.6% of the
+ * true value at the same rank. Recording is one atomic increment of the bucket plus the count, total and maximum,
+ * and never blocks; readers copy the buckets, so a snapshot taken while durations are recorded may miss the latest
+ * ones but is never torn within a bucket. The 1,888 buckets cover every long and take ~15 KB.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = index(Long.MAX_VALUE) + 1;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        buckets.getAndIncrement(index(nanos));
+        count.getAndIncrement();
+        totalNanos.getAndAdd(nanos);
+        if (nanos > maxNanos.get())
+            maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    long count() {
+        return count.get();
+    }
+
+    long totalNanos() {
+        return totalNanos.get();
+    }
+
+    long maxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * @param percentiles each between 0 and 100
+     * @return the estimated duration in nanoseconds at the nearest rank of each percentile, all taken from the same
+     * copy of the buckets, or 0 for every percentile if nothing was recorded
+     */
+    double[] percentiles(double... percentiles) {
+        long[] copy = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = buckets.get(i);
+            total += copy[i];
+        }
+
+        double[] result = new double[percentiles.length];
+        if (total == 0)
+            return result;
+        for (int p = 0; p < percentiles.length; p++) {
+            long rank = Math.max(1, (long) Math.ceil(percentiles[p] / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += copy[i];
+                if (seen >= rank) {
+                    result[p] = Math.min(estimate(i), maxNanos.get());
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static int index(long nanos) {
+        if (nanos < SUB_BUCKETS)
+            return (int) nanos;
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int mantissa = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)); // SUB_BUCKETS to 2 * SUB_BUCKETS - 1
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + mantissa - SUB_BUCKETS;
+    }
+
+    private static double estimate(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long lower = (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return lower + ((1L << shift) - 1) / 2.0;
+    }
+}
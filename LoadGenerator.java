@@ -0,0 +1,555 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Headless load generator: simulates many edge devices against a Server from one JVM.
+ *
+ * Every device logs in with its own account from credentials.txt, then runs random commands from the command mix
+ * with a random think time between them until the run is over, and logs out. Devices log in at the login rate, so a
+ * run starts with a ramp. Each device is one thread, a virtual thread where the JVM has them. All devices share one
+ * UDP socket (they all register its port), UVF transfers go from one simulated device to another through it.
+ *
+ * At the end the throughput, error count and latency percentiles of every command are printed and written to a JSON
+ * file, together with the settings of the run.
+ */
+public class LoadGenerator {
+
+    // Settings, see README.md
+    private static final int DEVICES = Integer.getInteger("load.devices", 100);
+    private static final double LOGIN_RATE = Double.parseDouble(System.getProperty("load.loginRate", "50"));
+    private static final String MIX = System.getProperty("load.mix", "EDG=5,UED=10,SCS=50,DTE=5,AED=25,UVF=5");
+    private static final int SAMPLES = Integer.getInteger("load.samples", 1000);
+    private static final long DURATION_SECONDS = Long.getLong("load.duration", 60);
+    private static final long THINK_MILLIS = Long.getLong("load.thinkMillis", 100);
+    private static final double BAD_LOGIN_PERCENT = Double.parseDouble(System.getProperty("load.badLoginPercent",
+            "0"));
+    private static final String CREDENTIALS = System.getProperty("load.credentials", "credentials.txt");
+    private static final String OUTPUT = System.getProperty("load.output", "load-results.json");
+    private static final boolean BINARY = System.getProperty("load.protocol", "object").equals("binary");
+    private static final long ENDPOINT_TTL_NANOS = TimeUnit.SECONDS.toNanos(Long.getLong("load.endpointTtlSeconds",
+            60));
+
+    private static final String[] COMMANDS = {"LOGIN", "EDG", "UED", "SCS", "DTE", "AED", "UVF", "OUT"};
+    private static final String[] SCS_OPERATIONS = {"AVERAGE", "MIN", "MAX", "SUM", "MEDIAN", "PERCENTILE 90",
+            "STDDEV", "HISTOGRAM 10"};
+    private static final int FILES_PER_DEVICE = 4;
+    private static final int UED_CHUNK_SIZE = 64 * 1024;
+    private static final long RETRY_MILLIS = 1000; // Before a device logs in again after it was refused
+
+    private static String SERVER_HOST;
+    private static int SERVER_PORT;
+    private static DatagramSocket udpSocket;
+    private static String[] deviceNames; // UVF sends to one of the other simulated devices
+
+    private static final Map<String, Stats> STATS = new LinkedHashMap<>();
+    private static final LongAdder loginFailures = new LongAdder(); // Wrong passwords the server answered with 101
+    private static final LongAdder lockouts = new LongAdder(); // Logins the server refused as blocked (103)
+    private static final LongAdder connectionErrors = new LongAdder();
+
+    // The UVF uploads in progress by transfer ID, the UDP receiver passes the ACKs on to them
+    private static final Map<Integer, UVFProtocol.Sender> SENDING = new ConcurrentHashMap<>();
+    private static final AtomicInteger NEXT_TRANSFER_ID = new AtomicInteger(new Random().nextInt());
+    private static final LongAdder uvfBytesReceived = new LongAdder();
+
+    /**
+     * The latencies and errors of one command, latencies in microseconds.
+     */
+    private static class Stats {
+        private final QuantileSketch latencies = new QuantileSketch();
+        private long count = 0;
+        private long errors = 0;
+        private long maxMicros = 0;
+
+        synchronized void record(long startNanos, boolean ok) {
+            long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+            latencies.add((int) Math.min(micros, Integer.MAX_VALUE));
+            maxMicros = Math.max(maxMicros, micros);
+            count++;
+            if (!ok)
+                errors++;
+        }
+
+        // The sketch estimate can land just above the slowest request, which is the true upper bound
+        synchronized double percentileMillis(double percentile) {
+            return Math.min(latencies.quantile(percentile), maxMicros) / 1000;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 3) {
+            System.out.println("===== Error usage: java LoadGenerator SERVER_IP SERVER_PORT UDP_PORT =====");
+            return;
+        }
+        SERVER_HOST = args[0];
+        SERVER_PORT = Integer.parseInt(args[1]);
+        int udpPort = Integer.parseInt(args[2]);
+
+        for (String command : COMMANDS)
+            STATS.put(command, new Stats());
+        String[] mix = parseMix(MIX);
+
+        List<String[]> accounts = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(Path.of(CREDENTIALS))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] params = line.split(" ");
+                if (params.length == 2)
+                    accounts.add(params);
+            }
+        }
+        if (accounts.size() < DEVICES) {
+            System.out.println("LOAD: ERROR - " + CREDENTIALS + " has " + accounts.size() + " accounts for " +
+                    DEVICES + " devices, every device needs its own");
+            return;
+        }
+
+        deviceNames = new String[DEVICES];
+        for (int i = 0; i < DEVICES; i++)
+            deviceNames[i] = accounts.get(i)[0];
+
+        udpSocket = new DatagramSocket(udpPort);
+        udpSocket.setReceiveBufferSize(4 * 1024 * 1024);
+        Thread receiver = new Thread(LoadGenerator::receiveUDP, "uvf-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+
+        System.out.println("LOAD: " + DEVICES + " devices, " + LOGIN_RATE + " logins/s, mix " + MIX + ", " +
+                SAMPLES + " samples per file, " + DURATION_SECONDS + " s");
+        Executor executor = deviceExecutor();
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(DURATION_SECONDS);
+        CountDownLatch finished = new CountDownLatch(DEVICES);
+        for (int i = 0; i < DEVICES; i++) {
+            long startAt = start + (long) (i * 1e9 / LOGIN_RATE);
+            if (startAt >= deadline) {
+                finished.countDown();
+                continue;
+            }
+            sleepUntil(startAt);
+            Device device = new Device(accounts.get(i)[0], accounts.get(i)[1], udpPort, mix, deadline);
+            executor.execute(() -> {
+                try {
+                    device.run();
+                } finally {
+                    finished.countDown();
+                }
+            });
+        }
+        finished.await();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        report(seconds);
+        writeResults(Path.of(OUTPUT), seconds);
+        System.out.println("LOAD: Results written to " + OUTPUT);
+        System.exit(0);
+    }
+
+    // Expand "SCS=50,AED=25,..." into a table with one entry per unit of weight to pick commands from
+    private static String[] parseMix(String mix) {
+        List<String> table = new ArrayList<>();
+        for (String entry : mix.split(",")) {
+            String[] params = entry.trim().split("=");
+            String command = params[0].trim().toUpperCase();
+            if (!STATS.containsKey(command) || command.equals("LOGIN") || command.equals("OUT"))
+                throw new IllegalArgumentException("Unknown command " + command + " in load.mix");
+            for (int i = Integer.parseInt(params[1].trim()); i > 0; i--)
+                table.add(command);
+        }
+        if (table.isEmpty())
+            throw new IllegalArgumentException("load.mix has no commands");
+        return table.toArray(new String[0]);
+    }
+
+    // Virtual threads are only available from Java 21, platform threads with small stacks otherwise
+    private static Executor deviceExecutor() {
+        try {
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger next = new AtomicInteger();
+            return command -> new Thread(null, command, "device-" + next.incrementAndGet(), 256 * 1024).start();
+        }
+    }
+
+    /**
+     * One simulated edge device, which logs in again whenever its connection is lost or its login refused.
+     */
+    private static class Device implements Runnable {
+        private final String username;
+        private final String password;
+        private final int udpPort;
+        private final String[] mix;
+        private final long deadline;
+
+        private String host = SERVER_HOST; // The server that owns the account, once a cluster redirected the login
+        private int port = SERVER_PORT;
+        private Socket connection;
+        private MessageChannel channel;
+        private String content; // The data file of the last EDG
+        private final Set<Integer> uploaded = new HashSet<>();
+        private final EndpointCache endpoints = new EndpointCache(ENDPOINT_TTL_NANOS); // As the client keeps them
+
+        Device(String username, String password, int udpPort, String[] mix, long deadline) {
+            this.username = username;
+            this.password = password;
+            this.udpPort = udpPort;
+            this.mix = mix;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (System.nanoTime() < deadline) {
+                    if (channel == null && !login()) {
+                        Thread.sleep(RETRY_MILLIS);
+                        continue;
+                    }
+
+                    String command = mix[ThreadLocalRandom.current().nextInt(mix.length)];
+                    // A file has to be uploaded before it can be used
+                    if ((command.equals("SCS") || command.equals("DTE")) && uploaded.isEmpty())
+                        command = "UED";
+
+                    long start = System.nanoTime();
+                    try {
+                        STATS.get(command).record(start, execute(command));
+                    } catch (IOException | ClassNotFoundException e) {
+                        STATS.get(command).record(start, false);
+                        connectionErrors.increment();
+                        disconnect();
+                    }
+
+                    if (THINK_MILLIS > 0)
+                        Thread.sleep((long) (-THINK_MILLIS * Math.log(1 - ThreadLocalRandom.current().nextDouble())));
+                }
+                logout();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Log in, a share of the logins with wrong passwords until the server blocks the account.
+         *
+         * @return whether the device is logged in
+         */
+        private boolean login() {
+            return login(System.nanoTime(), true);
+        }
+
+        // Only the first server may redirect, servers with different cluster lists would redirect each other forever
+        private boolean login(long start, boolean mayRedirect) {
+            boolean bad = ThreadLocalRandom.current().nextDouble() * 100 < BAD_LOGIN_PERCENT;
+            try {
+                connection = new Socket(host, port);
+                channel = MessageChannel.ObjectStreamChannel.connect(connection.getInputStream(),
+                        connection.getOutputStream());
+                channel.read(); // Username prompt
+                if (BINARY) {
+                    channel.write(Map.of("command", "PROTOCOL", "content", "BINARY"));
+                    if (!"100".equals(channel.read().get("status")))
+                        throw new IOException("Binary protocol not supported by server");
+                    channel = new MessageChannel.BinaryChannel(connection.getInputStream(),
+                            connection.getOutputStream());
+                    channel.read();
+                }
+                channel.write(Map.of("command", "LOGIN", "content", username));
+
+                while (true) {
+                    Map<String, String> msg = channel.read();
+                    switch (msg.get("status")) {
+                        case "100":
+                            channel.write(Map.of("command", "LOGIN", "content", String.valueOf(udpPort)));
+                            STATS.get("LOGIN").record(start, true);
+                            return true;
+                        case "101":
+                            loginFailures.increment();
+                            break;
+                        case "102":
+                            channel.write(Map.of("command", "LOGIN", "content", bad ? password + "-wrong" : password));
+                            break;
+                        case "103":
+                            lockouts.increment();
+                            STATS.get("LOGIN").record(start, false);
+                            disconnect();
+                            return false;
+                        case "105":
+                            if (!mayRedirect) {
+                                STATS.get("LOGIN").record(start, false);
+                                disconnect();
+                                return false;
+                            }
+                            String owner = msg.get("redirect");
+                            host = owner.substring(0, owner.lastIndexOf(':'));
+                            port = Integer.parseInt(owner.substring(owner.lastIndexOf(':') + 1));
+                            disconnect();
+                            return login(start, false);
+                    }
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                STATS.get("LOGIN").record(start, false);
+                connectionErrors.increment();
+                disconnect();
+                return false;
+            }
+        }
+
+        private void logout() {
+            if (channel == null)
+                return;
+            long start = System.nanoTime();
+            try {
+                channel.write(Map.of("command", "OUT", "username", username));
+                // The server answers by closing the connection
+                channel.read();
+                STATS.get("OUT").record(start, false);
+            } catch (EOFException | SocketException e) {
+                STATS.get("OUT").record(start, true);
+            } catch (IOException | ClassNotFoundException e) {
+                STATS.get("OUT").record(start, false);
+            }
+            disconnect();
+        }
+
+        private void disconnect() {
+            try {
+                if (connection != null)
+                    connection.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+            connection = null;
+            channel = null;
+        }
+
+        /**
+         * @return whether the server answered with success
+         */
+        private boolean execute(String command) throws IOException, ClassNotFoundException {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            switch (command) {
+                case "EDG":
+                    content = generate();
+                    return true;
+                case "UED": {
+                    if (content == null)
+                        content = generate();
+                    int fileID = random.nextInt(FILES_PER_DEVICE) + 1;
+                    for (int i = 0; i < content.length(); i += UED_CHUNK_SIZE)
+                        channel.write(Map.of("command", "UED", "fileID", String.valueOf(fileID), "username", username,
+                                "chunk", content.substring(i, Math.min(content.length(), i + UED_CHUNK_SIZE)),
+                                "last", "false"));
+                    channel.write(Map.of("command", "UED", "fileID", String.valueOf(fileID), "username", username,
+                            "chunk", "", "last", "true"));
+                    boolean ok = "100".equals(channel.read().get("status"));
+                    if (ok)
+                        uploaded.add(fileID);
+                    return ok;
+                }
+                case "SCS": {
+                    String[] operation = SCS_OPERATIONS[random.nextInt(SCS_OPERATIONS.length)].split(" ");
+                    Map<String, String> request = new HashMap<>();
+                    request.put("command", "SCS");
+                    request.put("fileID", String.valueOf(pickUploaded()));
+                    request.put("username", username);
+                    request.put("operation", operation[0]);
+                    if (operation.length > 1)
+                        request.put("argument", operation[1]);
+                    channel.write(request);
+                    return "100".equals(channel.read().get("status"));
+                }
+                case "DTE": {
+                    int fileID = pickUploaded();
+                    uploaded.remove(fileID);
+                    channel.write(Map.of("command", "DTE", "fileID", String.valueOf(fileID), "username", username));
+                    return "100".equals(channel.read().get("status"));
+                }
+                case "AED":
+                    channel.write(Map.of("command", "AED", "username", username));
+                    return "100".equals(channel.read().get("status"));
+                case "UVF":
+                    return sendUVF();
+            }
+            return false;
+        }
+
+        // Resolve another device as the client does, from the cache or with LKP, and send it the data file of the
+        // last EDG
+        private boolean sendUVF() throws IOException, ClassNotFoundException {
+            if (deviceNames.length < 2)
+                return false;
+            String receiver;
+            do {
+                receiver = deviceNames[ThreadLocalRandom.current().nextInt(deviceNames.length)];
+            } while (receiver.equals(username));
+
+            InetSocketAddress endpoint = endpoints.get(receiver);
+            if (endpoint == null) {
+                channel.write(Map.of("command", "LKP", "username", username, "device", receiver));
+                Map<String, String> map = channel.read();
+                if (!"100".equals(map.get("status")))
+                    return false;
+                endpoint = new InetSocketAddress(InetAddress.getByName(map.get("address")),
+                        Integer.parseInt(map.get("port")));
+                endpoints.put(receiver, endpoint);
+            }
+
+            if (content == null)
+                content = generate();
+            int transferID = NEXT_TRANSFER_ID.getAndIncrement();
+            UVFProtocol.Sender sender = new UVFProtocol.Sender(udpSocket, endpoint.getAddress(), endpoint.getPort(),
+                    transferID, username + " load.txt",
+                    new ByteArrayInputStream(content.getBytes(StandardCharsets.US_ASCII)));
+            SENDING.put(transferID, sender);
+            try {
+                if (sender.send())
+                    return true;
+                endpoints.invalidate(receiver, endpoint);
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                SENDING.remove(transferID);
+            }
+        }
+
+        private int pickUploaded() {
+            int skip = ThreadLocalRandom.current().nextInt(uploaded.size());
+            Iterator<Integer> iterator = uploaded.iterator();
+            for (int i = 0; i < skip; i++)
+                iterator.next();
+            return iterator.next();
+        }
+
+        // A data file as EDG generates it, in memory
+        private static String generate() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            StringBuilder builder = new StringBuilder(SAMPLES * 5);
+            for (int i = 0; i < SAMPLES; i++)
+                builder.append(random.nextInt(1, 10000)).append(System.lineSeparator());
+            return builder.toString();
+        }
+    }
+
+    // Receives the UVF transfers between the simulated devices and drops the data, and passes on the ACKs
+    private static void receiveUDP() {
+        byte[] buffer = new byte[UVFProtocol.MAX_DATAGRAM];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        Map<String, UVFProtocol.Receiver> incoming = new HashMap<>();
+        while (true) {
+            try {
+                packet.setLength(buffer.length);
+                udpSocket.receive(packet);
+                if (UVFProtocol.isAck(packet)) {
+                    UVFProtocol.Sender sender = SENDING.get(UVFProtocol.transferID(packet));
+                    if (sender != null)
+                        sender.onAck(packet);
+                    continue;
+                }
+                if (!UVFProtocol.isData(packet))
+                    continue;
+
+                String key = packet.getSocketAddress() + "/" + UVFProtocol.transferID(packet);
+                UVFProtocol.Receiver receiver = incoming.get(key);
+                if (receiver == null) {
+                    incoming.values().removeIf(idle -> idle.idle() > TimeUnit.MINUTES.toNanos(2));
+                    receiver = new UVFProtocol.Receiver(new DiscardSink());
+                    incoming.put(key, receiver);
+                }
+                byte[] ack = receiver.onData(packet);
+                if (ack != null)
+                    udpSocket.send(new DatagramPacket(ack, ack.length, packet.getSocketAddress()));
+            } catch (IOException e) {
+                break;
+            }
+        }
+    }
+
+    private static class DiscardSink implements UVFProtocol.Sink {
+        @Override
+        public void open(String header) {
+        }
+
+        @Override
+        public void write(long position, byte[] data, int offset, int length) {
+            uvfBytesReceived.add(length);
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void abort() {
+        }
+    }
+
+    private static void report(double seconds) {
+        System.out.printf("LOAD: %.1f s, %d login failures, %d lockouts, %d connection errors, %d UVF bytes received%n",
+                seconds, loginFailures.sum(), lockouts.sum(), connectionErrors.sum(), uvfBytesReceived.sum());
+        System.out.printf("%-6s %9s %7s %9s %9s %9s %9s %9s%n", "", "count", "errors", "per s", "p50 ms", "p90 ms",
+                "p99 ms", "max ms");
+        for (Map.Entry<String, Stats> entry : STATS.entrySet()) {
+            Stats stats = entry.getValue();
+            synchronized (stats) {
+                System.out.printf("%-6s %9d %7d %9.1f %9.2f %9.2f %9.2f %9.2f%n", entry.getKey(), stats.count,
+                        stats.errors, stats.count / seconds, stats.percentileMillis(50), stats.percentileMillis(90),
+                        stats.percentileMillis(99), stats.maxMicros / 1000.0);
+            }
+        }
+    }
+
+    private static void writeResults(Path file, double seconds) throws IOException {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"settings\": {");
+        json.append("\"devices\": ").append(DEVICES);
+        json.append(", \"loginRate\": ").append(LOGIN_RATE);
+        json.append(", \"mix\": \"").append(MIX).append('"');
+        json.append(", \"samples\": ").append(SAMPLES);
+        json.append(", \"durationSeconds\": ").append(DURATION_SECONDS);
+        json.append(", \"thinkMillis\": ").append(THINK_MILLIS);
+        json.append(", \"badLoginPercent\": ").append(BAD_LOGIN_PERCENT);
+        json.append(", \"protocol\": \"").append(BINARY ? "binary" : "object").append('"');
+        json.append("},\n");
+        json.append("  \"seconds\": ").append(String.format(Locale.ROOT, "%.3f", seconds)).append(",\n");
+        json.append("  \"loginFailures\": ").append(loginFailures.sum()).append(",\n");
+        json.append("  \"lockouts\": ").append(lockouts.sum()).append(",\n");
+        json.append("  \"connectionErrors\": ").append(connectionErrors.sum()).append(",\n");
+        json.append("  \"commands\": {\n");
+        int i = 0;
+        for (Map.Entry<String, Stats> entry : STATS.entrySet()) {
+            Stats stats = entry.getValue();
+            synchronized (stats) {
+                json.append(String.format(Locale.ROOT, "    \"%s\": {\"count\": %d, \"errors\": %d, " +
+                                "\"perSecond\": %.2f, \"p50Millis\": %.3f, \"p90Millis\": %.3f, \"p99Millis\": %.3f, " +
+                                "\"maxMillis\": %.3f}",
+                        entry.getKey(), stats.count, stats.errors, stats.count / seconds, stats.percentileMillis(50),
+                        stats.percentileMillis(90), stats.percentileMillis(99), stats.maxMicros / 1000.0));
+            }
+            json.append(++i < STATS.size() ? ",\n" : "\n");
+        }
+        json.append("  }\n");
+        json.append("}\n");
+        Files.writeString(file, json, StandardCharsets.UTF_8);
+    }
+
+    private static void sleepUntil(long nanos) throws InterruptedException {
+        long wait = nanos - System.nanoTime();
+        if (wait > 0)
+            TimeUnit.NANOSECONDS.sleep(wait);
+    }
+}
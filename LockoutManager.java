@@ -0,0 +1,61 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The accounts that are temporarily blocked after too many failed logins.
+ *
+ * A lockout is an expiry time in a concurrent map, and one scheduler thread removes it when it expires, so the
+ * session that failed does not wait for the lockout to end. Checking an account is a single map lookup that also
+ * compares the expiry time, so a lockout never lasts longer than its duration even if the scheduler runs late.
+ */
+class LockoutManager {
+    private final long durationMillis;
+    private final Map<String, Long> lockouts = new ConcurrentHashMap<>(); // Username to expiry time in ms
+    private final ScheduledExecutorService scheduler;
+
+    LockoutManager(long durationMillis) {
+        this.durationMillis = durationMillis;
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "lockout-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Block an account for the lockout duration, starting again if it is already blocked.
+     */
+    void lock(String username) {
+        Long expiry = System.currentTimeMillis() + durationMillis;
+        lockouts.put(username, expiry);
+        ServerLog.info("Account {} blocked", username);
+
+        scheduler.schedule(() -> {
+            // A later lockout of the same account replaced this expiry and has its own task
+            if (lockouts.remove(username, expiry))
+                ServerLog.info("Account {} unblocked", username);
+        }, durationMillis, TimeUnit.MILLISECONDS);
+    }
+
+    boolean isLocked(String username) {
+        Long expiry = lockouts.get(username);
+        return expiry != null && expiry > System.currentTimeMillis();
+    }
+
+    /**
+     * @return the blocked accounts with the milliseconds until each is unblocked
+     */
+    Map<String, Long> lockedAccounts() {
+        long now = System.currentTimeMillis();
+        Map<String, Long> result = new HashMap<>();
+        lockouts.forEach((username, expiry) -> {
+            if (expiry > now)
+                result.put(username, expiry - now);
+        });
+        return result;
+    }
+}
@@ -0,0 +1,414 @@
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A connection carrying the Map&lt;String, String&gt; messages exchanged between Client and Server.
+ *
+ * Every connection starts with {@link ObjectStreamChannel}. A client can ask for the binary protocol by sending
+ * {"command": "PROTOCOL", "content": "BINARY"} instead of its username. The server answers with status 100 and from
+ * then on both sides use {@link BinaryChannel} on the same socket.
+ */
+interface MessageChannel {
+    Map<String, String> read() throws IOException, ClassNotFoundException;
+
+    void write(Map<String, String> message) throws IOException;
+
+    /**
+     * @return whether the next message has started to arrive, so read() does not wait for the client
+     */
+    boolean ready() throws IOException;
+
+    /**
+     * The original protocol: every message is a Java-serialized map.
+     */
+    class ObjectStreamChannel implements MessageChannel {
+        // Both handle tables keep every object sent since the last reset, so reset them regularly on bulk transfers
+        private static final long RESET_INTERVAL = 1024 * 1024;
+
+        private final ObjectOutputStream outputStream;
+        private ObjectInputStream inputStream; // Opened by the first read() on the side that accepted the connection
+        private final InputStream in;
+        private final CountingOutputStream counter;
+
+        /**
+         * Open the streams on the side that writes its stream header first (the server). The stream header of the
+         * other side is only read together with its first message, so accepting a connection never waits for it.
+         */
+        static ObjectStreamChannel accept(InputStream in, OutputStream out) throws IOException {
+            CountingOutputStream counter = new CountingOutputStream(out);
+            ObjectOutputStream outputStream = new ObjectOutputStream(counter);
+            outputStream.flush();
+            return new ObjectStreamChannel(outputStream, null, in, counter);
+        }
+
+        /**
+         * Open the streams on the side that reads the stream header first (the client).
+         */
+        static ObjectStreamChannel connect(InputStream in, OutputStream out) throws IOException {
+            ObjectInputStream inputStream = new ObjectInputStream(in);
+            CountingOutputStream counter = new CountingOutputStream(out);
+            ObjectOutputStream outputStream = new ObjectOutputStream(counter);
+            outputStream.flush();
+            return new ObjectStreamChannel(outputStream, inputStream, in, counter);
+        }
+
+        private ObjectStreamChannel(ObjectOutputStream outputStream, ObjectInputStream inputStream, InputStream in,
+                                    CountingOutputStream counter) {
+            this.outputStream = outputStream;
+            this.inputStream = inputStream;
+            this.in = in;
+            this.counter = counter;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Map<String, String> read() throws IOException, ClassNotFoundException {
+            if (inputStream == null)
+                inputStream = new ObjectInputStream(in);
+            return (Map<String, String>) inputStream.readObject();
+        }
+
+        @Override
+        public synchronized void write(Map<String, String> message) throws IOException {
+            outputStream.writeObject(message);
+            if (counter.count >= RESET_INTERVAL) {
+                outputStream.reset();
+                counter.count = 0;
+            }
+            outputStream.flush();
+        }
+
+        // ObjectInputStream reads no further than the current block, so the rest is still in the socket
+        @Override
+        public boolean ready() throws IOException {
+            return (inputStream != null && inputStream.available() > 0) || in.available() > 0;
+        }
+    }
+
+    /**
+     * The input stream of a connection. A socket opened through a SocketChannel reports a broken connection as a
+     * plain IOException where a socket of its own throws SocketException, so its errors are turned into
+     * SocketException and callers can still tell a lost connection from other I/O errors.
+     */
+    static InputStream input(Socket connection) throws IOException {
+        return new FilterInputStream(connection.getInputStream()) {
+            @Override
+            public int read() throws IOException {
+                try {
+                    return in.read();
+                } catch (IOException e) {
+                    throw connectionLost(e);
+                }
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                try {
+                    return in.read(b, off, len);
+                } catch (IOException e) {
+                    throw connectionLost(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * The output stream of a connection, with its errors turned into SocketException as for {@link #input}. It is
+     * buffered until flush(), which both channels call once per message, so a message leaves in one write instead
+     * of one TCP segment per field that waits for the delayed ACK of the one before.
+     */
+    static OutputStream output(Socket connection) throws IOException {
+        return new FilterOutputStream(new BufferedOutputStream(connection.getOutputStream())) {
+            @Override
+            public void write(int b) throws IOException {
+                try {
+                    out.write(b);
+                } catch (IOException e) {
+                    throw connectionLost(e);
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    out.write(b, off, len);
+                } catch (IOException e) {
+                    throw connectionLost(e);
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    throw connectionLost(e);
+                }
+            }
+        };
+    }
+
+    private static IOException connectionLost(IOException e) {
+        if (e instanceof SocketException || e instanceof InterruptedIOException)
+            return e;
+        SocketException lost = new SocketException(e.getMessage());
+        lost.initCause(e);
+        return lost;
+    }
+
+    class CountingOutputStream extends FilterOutputStream {
+        long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * Length-prefixed binary frames:
+     * <pre>
+     * int32  length of the rest of the frame
+     * uint8  opcode, see OPCODES (0 carries the command as a generic field)
+     * uint16 numeric status, 0 when the message has none
+     * uint8  number of fields
+     * fields uint8 tag, see TAGS, followed by the value: varint length + UTF-8 for strings, int32 for fileID.
+     *        Tag 0 is a generic field made of a key string and a value string.
+     * </pre>
+     * The input stream is read with exact lengths and never ahead of the current frame. A frame longer than
+     * MAX_FRAME_LENGTH, or one whose fields do not add up to its length, fails the read with an IOException before
+     * anything is allocated for it or read past it.
+     */
+    class BinaryChannel implements MessageChannel {
+        private static final String[] OPCODES = {null, "LOGIN", "UED", "SCS", "DTE", "AED", "OUT", "DWN", "STATS",
+                "RESUME", "LKP", "PRESENCE", "EVENT", "AGG"};
+        private static final String[] TAGS = {null, "username", "fileID", "content", "operation", "information",
+                "prompt", "chunk", "id"};
+        private static final int FILE_ID_TAG = 2;
+
+        // Buffers that grew beyond this for one large message are dropped again afterwards
+        private static final int INITIAL_BUFFER_SIZE = 256;
+        private static final int MAX_RETAINED_BUFFER_SIZE = 256 * 1024;
+
+        // Far above any message the client or server sends (UED content goes in 64K chunks)
+        static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+        private final DataInputStream inputStream;
+        private final OutputStream outputStream;
+
+        private final byte[] header = new byte[4];
+        private byte[] readBuffer = new byte[INITIAL_BUFFER_SIZE];
+        private int readPosition;
+        private int readLimit;
+
+        private byte[] writeBuffer = new byte[INITIAL_BUFFER_SIZE];
+        private int writePosition;
+
+        BinaryChannel(InputStream in, OutputStream out) {
+            this.inputStream = new DataInputStream(in);
+            this.outputStream = out;
+        }
+
+        @Override
+        public Map<String, String> read() throws IOException {
+            inputStream.readFully(header);
+            int length = (header[0] & 0xFF) << 24 | (header[1] & 0xFF) << 16 | (header[2] & 0xFF) << 8 |
+                    (header[3] & 0xFF);
+            if (length < 4 || length > MAX_FRAME_LENGTH)
+                throw new IOException("Invalid frame length " + length);
+            if (readBuffer.length < length)
+                readBuffer = new byte[Math.max(length, readBuffer.length * 2)];
+            inputStream.readFully(readBuffer, 0, length);
+            readPosition = 0;
+            readLimit = length;
+
+            Map<String, String> message = new HashMap<>();
+            int opcode = readBuffer[readPosition++] & 0xFF;
+            if (opcode != 0)
+                message.put("command", lookup(OPCODES, opcode));
+            int status = (readBuffer[readPosition++] & 0xFF) << 8 | (readBuffer[readPosition++] & 0xFF);
+            if (status != 0)
+                message.put("status", String.valueOf(status));
+
+            int fields = readBuffer[readPosition++] & 0xFF;
+            for (int i = 0; i < fields; i++) {
+                require(1);
+                int tag = readBuffer[readPosition++] & 0xFF;
+                if (tag == 0)
+                    message.put(readString(), readString());
+                else if (tag == FILE_ID_TAG)
+                    message.put(lookup(TAGS, tag), String.valueOf(readInt()));
+                else
+                    message.put(lookup(TAGS, tag), readString());
+            }
+            if (readPosition != readLimit)
+                throw new IOException("Frame has " + (readLimit - readPosition) + " bytes after its fields");
+            if (readBuffer.length > MAX_RETAINED_BUFFER_SIZE)
+                readBuffer = new byte[INITIAL_BUFFER_SIZE];
+            return message;
+        }
+
+        @Override
+        public synchronized void write(Map<String, String> message) throws IOException {
+            writePosition = 4;
+            int opcode = indexOf(OPCODES, message.get("command"));
+            int status = parseStatus(message.get("status"));
+            writeByte(opcode);
+            writeByte(status >> 8);
+            writeByte(status);
+
+            int countPosition = writePosition;
+            int fields = 0;
+            writeByte(0);
+            for (Map.Entry<String, String> entry : message.entrySet()) {
+                String key = entry.getKey();
+                if (key.equals("command") && opcode != 0 || key.equals("status") && status != 0)
+                    continue;
+
+                int tag = indexOf(TAGS, key);
+                if (tag == FILE_ID_TAG && isInt(entry.getValue())) {
+                    writeByte(tag);
+                    writeInt(Integer.parseInt(entry.getValue()));
+                } else if (tag > 0 && tag != FILE_ID_TAG) {
+                    writeByte(tag);
+                    writeString(entry.getValue());
+                } else {
+                    writeByte(0);
+                    writeString(key);
+                    writeString(entry.getValue());
+                }
+                fields++;
+            }
+            if (fields > 0xFF)
+                throw new IOException("Too many fields in message");
+            writeBuffer[countPosition] = (byte) fields;
+
+            int length = writePosition - 4;
+            if (length > MAX_FRAME_LENGTH)
+                throw new IOException("Message of " + length + " bytes is too long for a frame");
+            writeBuffer[0] = (byte) (length >>> 24);
+            writeBuffer[1] = (byte) (length >>> 16);
+            writeBuffer[2] = (byte) (length >>> 8);
+            writeBuffer[3] = (byte) length;
+            outputStream.write(writeBuffer, 0, writePosition);
+            outputStream.flush();
+            if (writeBuffer.length > MAX_RETAINED_BUFFER_SIZE)
+                writeBuffer = new byte[INITIAL_BUFFER_SIZE];
+        }
+
+        @Override
+        public boolean ready() throws IOException {
+            return inputStream.available() > 0;
+        }
+
+        private static String lookup(String[] table, int index) throws IOException {
+            if (index >= table.length || table[index] == null)
+                throw new IOException("Unknown code " + index + " in frame");
+            return table[index];
+        }
+
+        private static int indexOf(String[] table, String value) {
+            for (int i = 1; i < table.length; i++) {
+                if (table[i].equals(value))
+                    return i;
+            }
+            return 0;
+        }
+
+        private static int parseStatus(String status) {
+            if (status == null || status.length() != 3 || status.charAt(0) == '0' || !isInt(status))
+                return 0;
+            return Integer.parseInt(status);
+        }
+
+        // Only values that print back to exactly the same string can be sent as a number
+        private static boolean isInt(String value) {
+            try {
+                return value != null && String.valueOf(Integer.parseInt(value)).equals(value);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+
+        private String readString() throws IOException {
+            int length = 0;
+            int shift = 0;
+            int b;
+            do {
+                require(1);
+                if (shift > 28)
+                    throw new IOException("Invalid string length in frame");
+                b = readBuffer[readPosition++];
+                length |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            if (length < 0 || length > readLimit - readPosition)
+                throw new IOException("Invalid string length " + length);
+            String value = new String(readBuffer, readPosition, length, StandardCharsets.UTF_8);
+            readPosition += length;
+            return value;
+        }
+
+        private int readInt() throws IOException {
+            require(4);
+            int value = (readBuffer[readPosition] & 0xFF) << 24 | (readBuffer[readPosition + 1] & 0xFF) << 16 |
+                    (readBuffer[readPosition + 2] & 0xFF) << 8 | (readBuffer[readPosition + 3] & 0xFF);
+            readPosition += 4;
+            return value;
+        }
+
+        private void require(int bytes) throws IOException {
+            if (readLimit - readPosition < bytes)
+                throw new IOException("Truncated frame");
+        }
+
+        private void writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            int length = bytes.length;
+            while ((length & ~0x7F) != 0) {
+                writeByte((length & 0x7F) | 0x80);
+                length >>>= 7;
+            }
+            writeByte(length);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, writeBuffer, writePosition, bytes.length);
+            writePosition += bytes.length;
+        }
+
+        private void writeInt(int value) {
+            ensureCapacity(4);
+            writeBuffer[writePosition++] = (byte) (value >>> 24);
+            writeBuffer[writePosition++] = (byte) (value >>> 16);
+            writeBuffer[writePosition++] = (byte) (value >>> 8);
+            writeBuffer[writePosition++] = (byte) value;
+        }
+
+        private void writeByte(int value) {
+            ensureCapacity(1);
+            writeBuffer[writePosition++] = (byte) value;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (writePosition + extra > writeBuffer.length) {
+                byte[] bigger = new byte[Math.max(writePosition + extra, writeBuffer.length * 2)];
+                System.arraycopy(writeBuffer, 0, bigger, 0, writePosition);
+                writeBuffer = bigger;
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Join and leave events of the active devices, pushed to the sessions that subscribed to them.
+ *
+ * Publishing an event never writes to a connection: it only stores the event in every subscription and, if that
+ * subscription had nothing pending, asks its owner to deliver. Pending events are kept per username and a newer event
+ * replaces an older one of the same user, so a subscriber that reads slowly gets the latest state of every device in
+ * one message instead of every step of a burst, and holds at most one event per device. Each subscription has at most
+ * one delivery in flight; whatever arrives while it writes is sent with the next message. A slow subscriber therefore
+ * only delays itself, and a burst of logins costs the login threads one map update per subscriber.
+ *
+ * Events are lines of the message content: "JOIN username address udpPort" and "LEAVE username".
+ */
+class PresenceFeed {
+
+    static final class Subscription {
+        private final String username;
+        private final Runnable deliver;
+        private final Map<String, String> pending = new LinkedHashMap<>(); // Username to its latest event
+        private boolean claimed = true; // A delivery is due or running, or start() was not called yet
+        private boolean cancelled = false;
+
+        private Subscription(String username, Runnable deliver) {
+            this.username = username;
+            this.deliver = deliver;
+        }
+
+        /**
+         * Allow deliveries, once the snapshot the subscription started from is sent.
+         */
+        void start() {
+            boolean due;
+            synchronized (this) {
+                due = !pending.isEmpty();
+                claimed = due;
+            }
+            if (due)
+                deliver.run();
+        }
+
+        /**
+         * Take the pending events. The delivery that calls this keeps calling it until it returns null, which ends the
+         * delivery; an event offered after that asks for a new one.
+         *
+         * @return the pending events as a message content, or null if there are none
+         */
+        synchronized String drain() {
+            if (pending.isEmpty()) {
+                claimed = false;
+                return null;
+            }
+            StringBuilder events = new StringBuilder();
+            for (Iterator<String> iterator = pending.values().iterator(); iterator.hasNext(); ) {
+                events.append(iterator.next()).append("\n");
+                iterator.remove();
+            }
+            return events.toString();
+        }
+
+        /**
+         * @return whether events are waiting for a delivery
+         */
+        synchronized boolean pending() {
+            return !pending.isEmpty();
+        }
+
+        private void offer(String device, String event) {
+            if (device.equals(username))
+                return;
+            boolean due;
+            synchronized (this) {
+                if (cancelled)
+                    return;
+                pending.remove(device); // Moves the device behind the events that are older than this one
+                pending.put(device, event);
+                due = !claimed;
+                claimed = true;
+            }
+            if (due)
+                deliver.run();
+        }
+    }
+
+    private final Set<Subscription> subscriptions = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Subscribe to the events of every device except the user's own. Nothing is delivered before
+     * {@link Subscription#start()}.
+     *
+     * @param deliver called when events are waiting, it must arrange for {@link Subscription#drain()} to be called
+     *                until it returns null, and must not block
+     */
+    Subscription subscribe(String username, Runnable deliver) {
+        Subscription subscription = new Subscription(username, deliver);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    void unsubscribe(Subscription subscription) {
+        subscriptions.remove(subscription);
+        synchronized (subscription) {
+            subscription.cancelled = true;
+            subscription.pending.clear();
+        }
+    }
+
+    void joined(String username, String address, String udpPort) {
+        publish(username, join(username, address, udpPort));
+    }
+
+    void left(String username) {
+        publish(username, "LEAVE " + username);
+    }
+
+    /**
+     * @return a JOIN event for every active device except the user's own, the state the user's subscription starts from
+     */
+    static String snapshot(Iterable<DeviceRegistry.Device> devices, String username) {
+        StringBuilder events = new StringBuilder();
+        for (DeviceRegistry.Device device : devices) {
+            if (!device.username.equals(username))
+                events.append(join(device.username, device.address, device.udpPort)).append("\n");
+        }
+        return events.toString();
+    }
+
+    private void publish(String username, String event) {
+        for (Subscription subscription : subscriptions)
+            subscription.offer(username, event);
+    }
+
+    private static String join(String username, String address, String udpPort) {
+        return "JOIN " + username + " " + address + " " + udpPort;
+    }
+}
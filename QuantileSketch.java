@@ -0,0 +1,117 @@
+/**
+ * Quantile sketch for int values with logarithmic buckets (the DDSketch mapping).
+ *
+ * A non-zero value v is counted in bucket ceil(log(|v|) / log(GAMMA)) of its sign, and a bucket is estimated by the
+ * value in it with the smallest relative distance to both bucket bounds. A quantile is therefore within
+ * RELATIVE_ACCURACY (1%) of the true value at the same rank, however many values were added. Ints need at most
+ * 1,076 buckets per sign, so the sketch never grows beyond a fixed ~17 KB.
+ */
+class QuantileSketch {
+    static final double RELATIVE_ACCURACY = 0.01;
+
+    private static final double GAMMA = (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+    private static final int BUCKETS = index(Integer.MIN_VALUE) + 1;
+
+    private final long[] positive = new long[BUCKETS];
+    private final long[] negative = new long[BUCKETS];
+    private long zeros = 0;
+    private long count = 0;
+
+    void add(int value) {
+        if (value > 0)
+            positive[index(value)]++;
+        else if (value < 0)
+            negative[index(value)]++;
+        else
+            zeros++;
+        count++;
+    }
+
+    /**
+     * Add the values counted by another sketch. Both use the same buckets, so the merged sketch is as accurate as one
+     * that was given every value.
+     */
+    void merge(QuantileSketch other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            positive[i] += other.positive[i];
+            negative[i] += other.negative[i];
+        }
+        zeros += other.zeros;
+        count += other.count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the estimated value at the nearest rank of the percentile, or 0 if the sketch is empty
+     */
+    double quantile(double percentile) {
+        if (count == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+
+        // Walk the values from the most negative to the most positive one
+        long seen = 0;
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            seen += negative[i];
+            if (seen >= rank)
+                return -estimate(i);
+        }
+        seen += zeros;
+        if (seen >= rank)
+            return 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += positive[i];
+            if (seen >= rank)
+                return estimate(i);
+        }
+        return estimate(BUCKETS - 1);
+    }
+
+    /**
+     * Sparse text form "zeros;index:count,...;index:count,..." with positive buckets before negative ones.
+     */
+    String encode() {
+        StringBuilder builder = new StringBuilder().append(zeros);
+        for (long[] buckets : new long[][]{positive, negative}) {
+            builder.append(';');
+            boolean first = true;
+            for (int i = 0; i < BUCKETS; i++) {
+                if (buckets[i] == 0)
+                    continue;
+                if (!first)
+                    builder.append(',');
+                builder.append(i).append(':').append(buckets[i]);
+                first = false;
+            }
+        }
+        return builder.toString();
+    }
+
+    static QuantileSketch decode(String encoded) {
+        QuantileSketch sketch = new QuantileSketch();
+        String[] parts = encoded.split(";", -1);
+        sketch.zeros = Long.parseLong(parts[0]);
+        sketch.count = sketch.zeros;
+        for (int part = 1; part <= 2; part++) {
+            long[] buckets = part == 1 ? sketch.positive : sketch.negative;
+            if (parts[part].isEmpty())
+                continue;
+            for (String bucket : parts[part].split(",")) {
+                int separator = bucket.indexOf(':');
+                long bucketCount = Long.parseLong(bucket.substring(separator + 1));
+                buckets[Integer.parseInt(bucket.substring(0, separator))] = bucketCount;
+                sketch.count += bucketCount;
+            }
+        }
+        return sketch;
+    }
+
+    private static int index(int value) {
+        return (int) Math.ceil(Math.log(Math.abs((double) value)) / LOG_GAMMA);
+    }
+
+    private static double estimate(int index) {
+        return 2 * Math.pow(GAMMA, index) / (GAMMA + 1);
+    }
+}
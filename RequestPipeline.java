@@ -0,0 +1,115 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * The pipelined requests of one connection, which run concurrently and are answered with the request ID.
+ *
+ * Requests run at the same time on the shared executor, except that a request which changes a key (the fileID) waits
+ * for every earlier request on that key, and a request which only reads a key waits for the earlier changes to it. In
+ * ordered mode the responses are sent in request order, otherwise each one is sent as soon as it is ready. At most
+ * depth requests are in flight, after that submit waits, so a client that sends faster than the server answers is held
+ * back by TCP flow control.
+ *
+ * submit, setOrdered and drained are only called by the thread currently handling the connection's messages.
+ */
+class RequestPipeline {
+    private final Executor executor;
+    private final Semaphore inFlight;
+    private final int depth;
+    private final Consumer<Map<String, String>> sender;
+
+    private boolean ordered = true;
+    private final Map<String, Key> keys = new HashMap<>();
+    private CompletableFuture<Void> lastSent = CompletableFuture.completedFuture(null);
+    private CompletableFuture<Void> drained = CompletableFuture.completedFuture(null);
+
+    // The requests in flight on one key
+    private static class Key {
+        CompletableFuture<?> lastWrite = CompletableFuture.completedFuture(null);
+        CompletableFuture<?> readsSinceWrite = CompletableFuture.completedFuture(null);
+
+        boolean done() {
+            return lastWrite.isDone() && readsSinceWrite.isDone();
+        }
+    }
+
+    /**
+     * @param sender writes a response to the client, it must not throw and in unordered mode it is called
+     *               concurrently
+     */
+    RequestPipeline(Executor executor, int depth, Consumer<Map<String, String>> sender) {
+        this.executor = executor;
+        this.inFlight = new Semaphore(depth);
+        this.depth = depth;
+        this.sender = sender;
+    }
+
+    /**
+     * Change the response order, only once everything in flight is sent.
+     */
+    void setOrdered(boolean ordered) {
+        drained.join();
+        this.ordered = ordered;
+    }
+
+    /**
+     * Run a request and send its response tagged with the request ID.
+     *
+     * @param key   what the request reads or changes, null if it depends on no other request
+     * @param write whether the request changes the key
+     * @param task  computes the response, it must not throw
+     */
+    void submit(String id, String key, boolean write, Supplier<Map<String, String>> task)
+            throws InterruptedException {
+        inFlight.acquire();
+
+        CompletableFuture<Map<String, String>> response;
+        if (key == null) {
+            response = CompletableFuture.supplyAsync(task, executor);
+        } else {
+            Key entry = keys.computeIfAbsent(key, k -> new Key());
+            CompletableFuture<?> previous = write ? CompletableFuture.allOf(entry.lastWrite, entry.readsSinceWrite) :
+                    entry.lastWrite;
+            response = previous.isDone() ? CompletableFuture.supplyAsync(task, executor) :
+                    previous.handleAsync((result, e) -> task.get(), executor);
+
+            if (write) {
+                entry.lastWrite = response;
+                entry.readsSinceWrite = CompletableFuture.completedFuture(null);
+            } else {
+                entry.readsSinceWrite = entry.readsSinceWrite.isDone() ? response :
+                        CompletableFuture.allOf(entry.readsSinceWrite, response);
+            }
+            if (keys.size() > depth)
+                keys.values().removeIf(Key::done);
+        }
+
+        CompletableFuture<Void> sent;
+        if (ordered)
+            sent = lastSent = lastSent.thenCombine(response, (ignored, info) -> info)
+                    .thenAccept(info -> send(id, info));
+        else
+            sent = response.thenAccept(info -> send(id, info));
+        sent.whenComplete((ignored, e) -> inFlight.release());
+
+        drained = drained.isDone() ? sent : CompletableFuture.allOf(drained, sent);
+    }
+
+    /**
+     * @return completes once every response submitted so far is sent
+     */
+    CompletableFuture<Void> drained() {
+        return drained;
+    }
+
+    private void send(String id, Map<String, String> info) {
+        Map<String, String> tagged = new HashMap<>(info);
+        tagged.put("id", id);
+        sender.accept(tagged);
+    }
+}
@@ -0,0 +1,253 @@
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.function.IntConsumer;
+
+/**
+ * The formats a stored data file can have. Every format keeps the name username-fileID.txt and is recognised by its
+ * first bytes, so a server can hold files of all formats at once.
+ *
+ * TEXT is the uploaded file itself, one decimal integer per line. The packed formats hold only the values, after a
+ * 16 byte header:
+ * <pre>
+ * 4 bytes  magic 0x89 'S' 'M' 'P' (0x89 never starts a UTF-8 text file)
+ * uint8    format, 1 for PACKED and 2 for DELTA
+ * 3 bytes  unused
+ * int64    number of values, little-endian
+ * </pre>
+ * PACKED stores each value as a little-endian int32. DELTA stores the difference to the previous value (the first
+ * value is the difference to 0), zigzag encoded as an unsigned varint of 1 to 5 bytes, so values that change slowly
+ * take one or two bytes each.
+ *
+ * The packed formats are read through a memory-mapped buffer and hand out plain ints, nothing is allocated per value.
+ */
+class SampleFile {
+
+    enum Format {
+        TEXT, PACKED, DELTA
+    }
+
+    static final int HEADER = 16;
+    private static final byte[] MAGIC = {(byte) 0x89, 'S', 'M', 'P'};
+    private static final long WINDOW = 1 << 28; // Bytes mapped at once, a mapping is limited to 2 GB
+    private static final int MAX_VARINT = 5;
+
+    /**
+     * @return the format selected by a -Dserver.storage value such as "packed"
+     * @throws IllegalArgumentException if there is no such format
+     */
+    static Format format(String name) {
+        return Format.valueOf(name.toUpperCase());
+    }
+
+    /**
+     * @return the format of a stored data file, TEXT unless it starts with a packed header
+     */
+    static Format format(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = readHeader(channel);
+            if (header == null)
+                return Format.TEXT;
+            return header.get(4) == 1 ? Format.PACKED : Format.DELTA;
+        }
+    }
+
+    // The header of a packed file, null if the file is text
+    private static ByteBuffer readHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining() && channel.read(header, header.position()) > 0) ;
+        if (header.hasRemaining())
+            return null;
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header.get(i) != MAGIC[i])
+                return null;
+        }
+        if (header.get(4) != 1 && header.get(4) != 2)
+            throw new IOException("Unknown data file format " + header.get(4));
+        return header;
+    }
+
+    /**
+     * Hand every value of a data file of any format to the consumer in order. A text file is parsed (and summarised)
+     * by DataSummary, the values of a packed file are read straight from the mapped file.
+     */
+    static void forEach(Path file, IntConsumer consumer) throws IOException {
+        if (format(file) == Format.TEXT)
+            DataSummary.scan(file, consumer);
+        else
+            forEachPacked(file, consumer);
+    }
+
+    /**
+     * Hand every value of a packed data file to the consumer in order.
+     *
+     * @throws IOException if the file is text or ends before the number of values in its header
+     */
+    static void forEachPacked(Path file, IntConsumer consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = readHeader(channel);
+            if (header == null)
+                throw new IOException(file + " is not a packed data file");
+            boolean delta = header.get(4) == 2;
+            long count = header.getLong(8);
+            long size = channel.size();
+
+            long position = HEADER;
+            long read = 0;
+            int previous = 0;
+            while (read < count) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(WINDOW, size - position));
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                boolean last = position + buffer.capacity() == size;
+                try {
+                    if (delta) {
+                        // A varint may continue in the next window, so remap before the last few bytes
+                        while (read < count && (last || buffer.remaining() >= MAX_VARINT)) {
+                            int zigzag = 0;
+                            int shift = 0;
+                            byte b;
+                            do {
+                                b = buffer.get();
+                                zigzag |= (b & 0x7f) << shift;
+                                shift += 7;
+                            } while (b < 0);
+                            previous += (zigzag >>> 1) ^ -(zigzag & 1);
+                            consumer.accept(previous);
+                            read++;
+                        }
+                    } else {
+                        while (read < count && buffer.remaining() >= Integer.BYTES) {
+                            consumer.accept(buffer.getInt());
+                            read++;
+                        }
+                    }
+                } catch (BufferUnderflowException e) {
+                    throw new IOException(file + " ends after " + read + " of " + count + " values");
+                }
+                if (last && read < count)
+                    throw new IOException(file + " ends after " + read + " of " + count + " values");
+                position += buffer.position();
+            }
+        }
+    }
+
+    /**
+     * Write a data file in a packed format from a text data file, through a .part file that atomically replaces the
+     * target.
+     *
+     * @return the summary of the values, nothing is written if it is not valid
+     */
+    static DataSummary convert(Path textFile, Path target, Format format) throws IOException {
+        Path partFile = Files.createTempFile(target.toAbsolutePath().getParent(), target.getFileName() + ".", ".part");
+        try {
+            DataSummary summary;
+            try (PackedWriter writer = new PackedWriter(partFile, format)) {
+                summary = DataSummary.scan(textFile, writer);
+            }
+            if (summary.valid)
+                Files.move(partFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return summary;
+        } finally {
+            Files.deleteIfExists(partFile);
+        }
+    }
+
+    /**
+     * Write a data file of any format as text, one value per line.
+     */
+    static void writeText(Path file, Path textFile) throws IOException {
+        if (format(file) == Format.TEXT) {
+            Files.copy(file, textFile, StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+        try (BufferedWriter writer = Files.newBufferedWriter(textFile, StandardCharsets.UTF_8)) {
+            IOException[] failure = new IOException[1];
+            forEachPacked(file, value -> {
+                try {
+                    if (failure[0] == null) {
+                        writer.write(Integer.toString(value));
+                        writer.write('\n');
+                    }
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            });
+            if (failure[0] != null)
+                throw failure[0];
+        }
+    }
+
+    /**
+     * Writes the values of a packed data file, the header is completed on close.
+     */
+    static class PackedWriter implements IntConsumer, Closeable {
+        private final FileChannel channel;
+        private final boolean delta;
+        private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+        private long count = 0;
+        private int previous = 0;
+        private IOException failure;
+
+        PackedWriter(Path file, Format format) throws IOException {
+            if (format == Format.TEXT)
+                throw new IllegalArgumentException("TEXT is not a packed format");
+            delta = format == Format.DELTA;
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            channel.position(HEADER);
+        }
+
+        @Override
+        public void accept(int value) {
+            if (buffer.remaining() < MAX_VARINT)
+                flush();
+            if (delta) {
+                int difference = value - previous; // Wraps around like the decoder, so any two ints work
+                int zigzag = (difference << 1) ^ (difference >> 31);
+                while ((zigzag & ~0x7f) != 0) {
+                    buffer.put((byte) ((zigzag & 0x7f) | 0x80));
+                    zigzag >>>= 7;
+                }
+                buffer.put((byte) zigzag);
+                previous = value;
+            } else {
+                buffer.putInt(value);
+            }
+            count++;
+        }
+
+        private void flush() {
+            buffer.flip();
+            try {
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+            } catch (IOException e) {
+                if (failure == null)
+                    failure = e;
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+                if (failure != null)
+                    throw failure;
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+                header.put(MAGIC).put((byte) (delta ? 2 : 1)).put(new byte[3]).putLong(count).flip();
+                while (header.hasRemaining())
+                    channel.write(header, header.position());
+            } finally {
+                channel.close();
+            }
+        }
+    }
+}
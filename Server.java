@@ -1,321 +1,863 @@
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 public class Server {
 
     private static int PORT;
     private static int NUMBER_OF_CONSECUTIVE_FAILED_ATTEMPTS;
     private static ServerSocket SOCKET;
-    private static Set<String> blockedDevices; // Saving all the temporarily blocked accounts.
+    private static LockoutManager lockouts; // Saving all the temporarily blocked accounts.
+
+    private static final int MAX_HISTOGRAM_BUCKETS = 1000;
+
+    private static final FileLocks fileLocks = new FileLocks(); // Locks of the stored data files
+    private static AuditLog auditLog; // Writes upload-log.txt, deletion-log.txt and the edge device journal
+    private static DeviceRegistry deviceRegistry; // Active edge devices, persisted to edge-device-log.txt
+
+    private static final Set<String> PIPELINED_COMMANDS = Set.of("UED", "SCS", "DTE", "AED", "LKP");
+    private static ExecutorService pipelineWorkers; // Runs the pipelined requests of all connections
+    private static int pipelineDepth; // Pipelined requests in flight per connection
+    private static SampleFile.Format storage = SampleFile.Format.TEXT; // Format of newly stored data files
+
+    private static final ServerStats stats = new ServerStats(); // Reported by STATS and over JMX
+    private static SessionTokens<Session> sessionTokens; // Let devices resume their session after a reconnect
+    private static Set<String> admins = Set.of(); // Accounts that may use STATS and AGG over other users' files
+    private static final PresenceFeed presenceFeed = new PresenceFeed(); // Join and leave events for subscribers
+    private static Executor presenceWorkers; // Deliver presence events on the thread engines
+    private static Cluster cluster; // The other shards, null unless the server is one shard of a cluster
+    private static AggregateQuery aggregates; // Runs AGG on its own threads
 
     // The multi-threading server structure is from https://webcms3.cse.unsw.edu.au/COMP3331/22T3/resources/80564
-    private static class ServerThread extends Thread {
+    // A Session holds the whole conversation state of one client, so an engine can either drive it from a single
+    // thread or hand it between worker threads one message at a time.
+    private static class Session {
+        // Login procedure states, in the order the client goes through them
+        private static final int PROMPT_USERNAME = 0;
+        private static final int PROMPT_PASSWORD = 1;
+        private static final int DEVICE_INFO = 2;
+        private static final int COMMANDS = 3;
+
         private final Socket connection;
         private final String clientIP;
         private final String client;
 
-        private String username = "";
+        private MessageChannel channel;
 
-        ServerThread(Socket connection) {
+        private int state = PROMPT_USERNAME;
+        private int failAttempts = 0;
+        private String loginUsername = null;
+        private Map<String, String> loginStatus = null;
+        private String token = null; // Resumes this session on another connection
+        private boolean loggedOut = false; // Ended with OUT rather than by losing the connection
+        private volatile PresenceFeed.Subscription presence = null; // Also read by the threads delivering events
+        // Delivers pending presence events; the thread engines write them from another thread, while the selector
+        // engine has to take the session off the selector first
+        private Runnable presenceDelivery = () -> presenceWorkers.execute(this::deliverPresence);
+
+        private DataFileUpload upload = null; // Chunked UED in progress
+        private final RequestPipeline pipeline;
+
+        Session(Socket connection) {
             this.connection = connection;
             clientIP = connection.getInetAddress().getHostAddress();
             client = clientIP + ":" + connection.getPort();
+            pipeline = new RequestPipeline(pipelineWorkers, pipelineDepth, this::sendPipelined);
         }
 
-        @Override
-        @SuppressWarnings("unchecked")
-        public void run() {
-            super.run();
-
-            System.out.println("SERVER LOG: Client " + client + " connected.");
-            Map<String, String> loginStatus = null;
-
-            ObjectOutputStream outputStream;
-            ObjectInputStream inputStream;
+        /**
+         * Open the object streams and send the first login prompt. Nothing is read from the client yet.
+         *
+         * @return whether the session is waiting for the next message from the client
+         */
+        boolean start() {
+            stats.sessionOpened();
+            ServerLog.info("Client {} connected.", client);
             try {
-                outputStream = new ObjectOutputStream(connection.getOutputStream());
-                outputStream.flush();
-                inputStream = new ObjectInputStream(connection.getInputStream());
+                connection.setTcpNoDelay(true);
+                channel = MessageChannel.ObjectStreamChannel.accept(MessageChannel.input(connection),
+                        MessageChannel.output(connection));
 
                 // Start log in procedure
-                loginStatus = login(outputStream, inputStream);
-                if (loginStatus.get("status").equals("0")) {
-                    while (true) {
-                        Map<String, String> map = (Map<String, String>) inputStream.readObject();
-                        Map<String, String> info;
-                        System.out.println("SERVER LOG: Client " + client + " (" + map.get("username") + ") issued " +
-                                "Command " + map.get("command"));
-                        boolean leave = false;
-                        switch (map.get("command")) {
-                            case "UED":
-                                info = handleUED(map.get("username"), map.get("fileID"), map.get("content"));
-                                outputStream.writeObject(info);
-                                outputStream.flush();
-                                System.out.println("SERVER LOG: Sent \"" + info.get("information") + "\" to Client "
-                                        + client + " (" + map.get("username") + ")");
-                                break;
-                            case "SCS":
-                                info = handleSCS(map.get("username"), map.get("fileID"), map.get("operation"));
-                                outputStream.writeObject(info);
-                                outputStream.flush();
-                                System.out.println("SERVER LOG: Sent \"" + info.get("information") + "\" to Client "
-                                        + client + " (" + map.get("username") + ")");
-                                break;
-                            case "DTE":
-                                info = handleDTE(map.get("username"), map.get("fileID"));
-                                outputStream.writeObject(info);
-                                outputStream.flush();
-                                System.out.println("SERVER LOG: Sent \"" + info.get("information") + "\" to Client "
-                                        + client + " (" + map.get("username") + ")");
-                                break;
-                            case "AED":
-                                info = handleAED(map.get("username"));
-                                outputStream.writeObject(info);
-                                outputStream.flush();
-                                System.out.println("SERVER LOG: Sent \"" + info.get("information") + "\" to Client "
-                                        + client + " (" + map.get("username") + ")");
-                                break;
-                            case "OUT":
-                                leave = true;
-                                break;
-                        }
-                        if (leave)
+                if (failAttempts < NUMBER_OF_CONSECUTIVE_FAILED_ATTEMPTS) {
+                    promptUsername();
+                    return true;
+                }
+                loginStatus = Map.of("status", "1", "username", "");
+            } catch (EOFException | SocketException e) {
+                ServerLog.info("Client {} disconnected abnormally. Close the connection.", client);
+            } catch (IOException e) {
+                ServerLog.error("{}", e.getMessage());
+            }
+            return false;
+        }
+
+        /**
+         * Block until the next message of the client arrives and handle it, together with any messages that arrived
+         * right after it.
+         *
+         * @return whether the session is waiting for another message from the client
+         */
+        boolean step() {
+            try {
+                do {
+                    Map<String, String> map = channel.read();
+                    boolean open;
+                    switch (state) {
+                        case PROMPT_USERNAME:
+                            open = handleUsername(map);
+                            break;
+                        case PROMPT_PASSWORD:
+                            open = handlePassword(map);
+                            break;
+                        case DEVICE_INFO:
+                            open = handleDeviceInfo(map);
                             break;
+                        default:
+                            open = handleCommand(map);
                     }
-                }
+                    if (!open)
+                        return false;
+                } while (channel.ready());
+                return true;
             } catch (EOFException | SocketException e) {
-                System.out.println("SERVER LOG: Client " + client + " disconnected abnormally. Close the connection.");
+                ServerLog.info("Client {} disconnected abnormally. Close the connection.", client);
+            } catch (SocketTimeoutException e) {
+                ServerLog.info("Client {} stopped in the middle of a message. Close the connection.", client);
             } catch (ClassNotFoundException | IOException e) {
-                System.out.println("SERVER ERROR: " + e.getMessage());
-            } finally {
-                String status = loginStatus == null ? null : loginStatus.get("status");
-                String username = loginStatus == null ? null : loginStatus.get("username");
-                try {
-                    // Close the connection
-                    connection.close();
+                ServerLog.error("{}", e.getMessage());
+            }
+            return false;
+        }
 
-                    System.out.println("SERVER LOG: Connection to Client " + client + " closed");
+        /**
+         * Close the connection, then block the account or remove the device from the active list depending on how
+         * the session ended.
+         */
+        void close() {
+            if (upload != null)
+                upload.abort();
+            if (presence != null)
+                presenceFeed.unsubscribe(presence);
+            stats.sessionClosed();
 
-                    // If we need to block the account for 10 seconds
-                    if (status != null && status.equals("1")) {
-                        blockedDevices.add(username);
-                        System.out.println("SERVER LOG: Account " + username + " blocked");
-                        Thread.sleep(10000);
+            String status = loginStatus == null ? null : loginStatus.get("status");
+            String username = loginStatus == null ? null : loginStatus.get("username");
+            try {
+                // Close the connection
+                connection.close();
 
-                        blockedDevices.remove(username);
-                        System.out.println("SERVER LOG: Account " + username + " unblocked");
-                    } else if (status != null && status.equals("0"))
-                        SynchronizedFileHandler.handleEdgeDeviceLog(1, username);
-                } catch (IOException e) {
-                    System.out.println("SERVER ERROR: " + e.getMessage());
-                } catch (InterruptedException e) {
-                    blockedDevices.remove(username);
-                    System.out.println("SERVER ERROR: Failed to block Account: " + username);
+                ServerLog.info("Connection to Client {} closed", client);
+
+                // If we need to block the account, the lockout expires on its own so this thread is free at once
+                if (status != null && status.equals("1")) {
+                    lockouts.lock(username);
+                    stats.lockout();
                 }
+                else if (status != null && status.equals("0"))
+                    sessionTokens.ended(token, username, this, loggedOut, () -> removeDevice(username));
+            } catch (IOException e) {
+                ServerLog.error("{}", e.getMessage());
             }
         }
 
-        private void printLog(String content, int mode) {
-            String s = username.equals("") ? "" : "(" + username + ")";
-            switch (mode) {
-                case 0:
-                    System.out.println("Client " + client + s + " - "  + content);
+        private static void removeDevice(String username) {
+            try {
+                SynchronizedFileHandler.handleEdgeDeviceLog(1, username);
+            } catch (IOException e) {
+                ServerLog.error("{}", e.getMessage());
+            }
+        }
+
+        SocketChannel socketChannel() {
+            return connection.getChannel();
+        }
+
+        /**
+         * @return completes once the responses of all pipelined requests so far are sent
+         */
+        CompletableFuture<Void> idle() {
+            return pipeline.drained();
+        }
+
+        private boolean handleCommand(Map<String, String> map) throws IOException {
+            Map<String, String> info;
+            boolean chunk = map.containsKey("chunk");
+            String id = map.get("id");
+            if (!chunk || upload == null)
+                ServerLog.debug("Client {} ({}) issued Command {}{}", client, map.get("username"), map.get("command"),
+                        id == null ? "" : " (request " + id + ")");
+
+            // A request with an ID is answered whenever it is done, an upload or deletion waits for the requests
+            // before it on the same file and requests after it wait for the upload or deletion
+            if (id != null && !chunk && PIPELINED_COMMANDS.contains(map.get("command"))) {
+                String command = map.get("command");
+                String key = command.equals("AED") || command.equals("LKP") ? null : map.get("fileID");
+                try {
+                    pipeline.submit(id, key, command.equals("UED") || command.equals("DTE"), () -> {
+                        long started = System.nanoTime();
+                        try {
+                            Map<String, String> response = execute(map);
+                            stats.command(command, started, !"100".equals(response.get("status")));
+                            return response;
+                        } catch (RuntimeException e) {
+                            stats.command(command, started, true);
+                            ServerLog.error("Request {} failed: {}", id, e);
+                            return Map.of("command", map.get("command"), "status", "101", "information",
+                                    "Request failed");
+                        }
+                    });
+                } catch (InterruptedException e) {
+                    return false;
+                }
+                return true;
+            }
+
+            // Everything else waits for the pipelined requests before it
+            pipeline.drained().join();
+            long started = System.nanoTime();
+            switch (map.get("command")) {
+                case "UED":
+                    if (chunk) {
+                        info = handleUEDChunk(map.get("username"), map.get("fileID"), map.get("chunk"),
+                                "true".equals(map.get("last")));
+                        if (info == null)
+                            return true;
+                    } else
+                        info = execute(map);
                     break;
-                case 1:
-                    System.out.println("Send to Client " + client + s + " - " + content);
+                case "SCS":
+                case "DTE":
+                case "AED":
+                case "LKP":
+                    info = execute(map);
                     break;
-                case 2:
-                    System.out.println("Received from Client " + client + s + " - " + content);
+                case "DWN":
+                    return handleDWN(map.get("username"), map.get("fileID"), map.get("offset"), map.get("length"),
+                            map.get("version"), started);
+                case "PIPELINE":
+                    info = handlePipelineMode(map.get("content"));
                     break;
-                case 3:
-                    System.out.println("Server - " + content);
+                case "STATS":
+                    info = handleSTATS();
+                    break;
+                case "PRESENCE":
+                    return handlePresence(map.get("content"), started);
+                case "AGG":
+                    return handleAGG(map.get("scope"), map.get("target"), map.get("operation"), map.get("argument"),
+                            started);
+                case "OUT":
+                    loggedOut = true;
+                    stats.command("OUT", started, false);
+                    return false;
+                default:
+                    return true;
+            }
+            if (id != null) {
+                info = new HashMap<>(info);
+                info.put("id", id);
             }
+            channel.write(info);
+            stats.command(map.get("command"), started, !"100".equals(info.get("status")));
+            ServerLog.debug("Sent \"{}\" to Client {} ({})", info.get("information"), client, map.get("username"));
+            return true;
         }
 
-        @SuppressWarnings("unchecked")
-        private Map<String, String> login(ObjectOutputStream outputStream, ObjectInputStream inputStream) throws
-                IOException, ClassNotFoundException {
-            int failAttempts = 0;
-            String username = null;
-            Map<String, String> info;
+        // The commands that can be pipelined, each one only depends on the stored files
+        private Map<String, String> execute(Map<String, String> map) {
+            switch (map.get("command")) {
+                case "UED":
+                    return handleUED(map.get("username"), map.get("fileID"), map.get("content"));
+                case "SCS":
+                    return handleSCS(map.get("username"), map.get("fileID"), map.get("operation"),
+                            map.get("argument"));
+                case "DTE":
+                    return handleDTE(map.get("username"), map.get("fileID"));
+                case "LKP":
+                    return handleLKP(map.get("device"));
+                default:
+                    return handleAED(map.get("username"));
+            }
+        }
 
-            while (failAttempts < NUMBER_OF_CONSECUTIVE_FAILED_ATTEMPTS) {
-                // Prompt the client for username
-                if (username == null) {
-                    info = Map.of("command", "LOGIN", "status", "102", "prompt", "Username: ");
-                    outputStream.writeObject(info);
-                    outputStream.flush();
-                    System.out.println("SERVER LOG: Prompt Client " + client + " for username");
-
-                    Map<String, String> map = (Map<String, String>) inputStream.readObject();
-                    String input = map.get("content");
-                    System.out.println("SERVER LOG: Received \"" + map.get("content") + "\" from Client " + client);
-
-                    if (checkUsernamePassword(input, null))
-                        username = input;
-                    else {
-                        info = Map.of("command", "LOGIN", "status", "101", "information",
-                                "The username is invalid, please check your input username and try again");
-                        outputStream.writeObject(info);
-                        outputStream.flush();
-                        System.out.println("SERVER LOG: Sent \"" + info.get("information") + "\" to Client " + client);
-                    }
-                } else {
-                    info = Map.of("command", "LOGIN", "status", "102", "prompt", "Password: ");
-                    outputStream.writeObject(info);
-                    outputStream.flush();
-                    System.out.println("SERVER LOG: Prompt Client " + client + " for password");
-
-                    Map<String, String> map = (Map<String, String>) inputStream.readObject();
-                    String input = map.get("content");
-                    System.out.println("SERVER LOG: Received \"" + map.get("content") + "\" from Client " + client);
-
-                    if (blockedDevices.contains(username)) {
-                        info = Map.of("command", "LOGIN", "status", "103", "information",
-                                "Your account is blocked due to multiple authentication failures. " +
-                                        "Please try again later.");
-                        outputStream.writeObject(info);
-                        outputStream.flush();
-                        System.out.println("SERVER LOG: Sent \"" + info.get("information") + "\" to Client " + client);
-                        return Map.of("status", "2", "username", username);
-                    }
+        private void sendPipelined(Map<String, String> info) {
+            try {
+                channel.write(info);
+                ServerLog.debug("Sent \"{}\" to Client {} ({}, request {})", info.get("information"), client,
+                        loginUsername, info.get("id"));
+            } catch (IOException e) {
+                ServerLog.error("Failed to send the response to request {} to Client {}: {}", info.get("id"), client,
+                        e.getMessage());
+            }
+        }
 
-                    if (checkUsernamePassword(username, input)) {
-                        info = Map.of("command", "LOGIN", "status", "100", "information",
-                                username + ", you have successfully logged in. Welcome!", "username", username);
-                        outputStream.writeObject(info);
-                        outputStream.flush();
-                        System.out.println("SERVER LOG: Sent \"" + info.get("information") + "\" to Client " + client);
-
-                        map = (Map<String, String>) inputStream.readObject();
-                        SynchronizedFileHandler.handleEdgeDeviceLog(0, username, clientIP, map.get("content"));
-                        System.out.println("SERVER LOG: Received \"" + map.get("content") + "\" from Client " + client);
-                        return Map.of("status", "0", "username", username);
-                    }
+        // ORDERED (the default) sends pipelined responses in request order, UNORDERED as soon as each is ready
+        private Map<String, String> handlePipelineMode(String mode) {
+            if (!"ORDERED".equals(mode) && !"UNORDERED".equals(mode))
+                return Map.of("command", "PIPELINE", "status", "101", "information",
+                        "Unknown pipeline mode " + mode);
+            pipeline.setOrdered(mode.equals("ORDERED"));
+            return Map.of("command", "PIPELINE", "status", "100", "information", "Pipeline mode " + mode);
+        }
 
-                    failAttempts++;
-                    if (failAttempts == NUMBER_OF_CONSECUTIVE_FAILED_ATTEMPTS)
-                        info = Map.of("command", "LOGIN", "status", "103", "information",
-                                "Your account is blocked due to multiple authentication failures. " +
-                                        "Please try again later.");
-                    else
-                        info = Map.of("command", "LOGIN", "status", "101", "information",
-                                "Wrong password, please try again!");
-                    outputStream.writeObject(info);
-                    outputStream.flush();
-                    System.out.println("SERVER LOG: Sent \"" + info.get("information") + "\" to Client " + client);
-                }
+        /**
+         * ON subscribes to the join and leave events of the other devices and answers with the devices active now, OFF
+         * ends the subscription. Events are only delivered once the answer is sent, so none overtakes it.
+         */
+        private boolean handlePresence(String mode, long started) throws IOException {
+            Map<String, String> info;
+            if (presence != null) {
+                presenceFeed.unsubscribe(presence);
+                presence = null;
+            }
+            if ("ON".equals(mode)) {
+                presence = presenceFeed.subscribe(loginUsername, presenceDelivery);
+                info = Map.of("command", "PRESENCE", "status", "100", "content",
+                        PresenceFeed.snapshot(deviceRegistry.devices(), loginUsername), "information",
+                        "Subscribed to presence events");
+            } else if ("OFF".equals(mode)) {
+                info = Map.of("command", "PRESENCE", "status", "100", "information",
+                        "Unsubscribed from presence events");
+            } else {
+                info = Map.of("command", "PRESENCE", "status", "101", "information", "Unknown presence mode " + mode);
             }
-            return Map.of("status", "1", "username", username == null ? "" : username);
+            channel.write(info);
+            stats.command("PRESENCE", started, !"100".equals(info.get("status")));
+            ServerLog.debug("Sent \"{}\" to Client {} ({})", info.get("information"), client, loginUsername);
+            if (presence != null)
+                presence.start();
+            return true;
         }
 
-        private boolean checkUsernamePassword(String username, String password) throws IOException {
-            FileInputStream fileInputStream = new FileInputStream("credentials.txt");
-            BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(fileInputStream));
-            String line;
-            if (password == null) {
-                while ((line = bufferedReader.readLine()) != null) {
-                    if (username.equals(line.split(" ")[0]))
-                        return true;
+        /**
+         * Run an SCS operation other than HISTOGRAM over file N of every user (scope FILE, target fileID) or over every
+         * file of one user (scope USER, target username), see AggregateQuery. While the files are scanned the client
+         * gets a status 102 message with the progress every AggregateQuery.PROGRESS_INTERVAL_MILLIS. The files of other
+         * users are only open to the accounts in -Dserver.admins.
+         */
+        private boolean handleAGG(String scope, String target, String operation, String argument, long started)
+                throws IOException {
+            Map<String, String> info;
+            try {
+                info = aggregate(scope, target, operation, argument);
+            } catch (NumberFormatException e) {
+                ServerLog.error("Invalid argument {} for {}", argument, operation);
+                info = Map.of("command", "AGG", "status", "101", "information", "Invalid aggregate operation");
+            }
+            channel.write(info);
+            stats.command("AGG", started, !"100".equals(info.get("status")));
+            ServerLog.debug("Sent \"{}\" to Client {} ({})", info.get("information"), client, loginUsername);
+            return true;
+        }
+
+        private Map<String, String> aggregate(String scope, String target, String operation, String argument)
+                throws IOException {
+            String label;
+            String unit;
+            if ("FILE".equals(scope) && target != null && target.matches("\\d+")) {
+                if (!admins.contains(loginUsername))
+                    return Map.of("command", "AGG", "status", "101", "information",
+                            "AGG over the files of every user is only available to administrators");
+                label = "file " + target + " of every user";
+                unit = "users";
+            } else if ("USER".equals(scope) && target != null && CredentialIndex.contains(target)) {
+                if (!target.equals(loginUsername) && !admins.contains(loginUsername))
+                    return Map.of("command", "AGG", "status", "101", "information",
+                            "AGG over the files of other users is only available to administrators");
+                label = "every file of " + target;
+                unit = "files";
+            } else {
+                return Map.of("command", "AGG", "status", "101", "information",
+                        "Unknown aggregate scope " + scope + " " + target);
+            }
+            if (operation == null)
+                return Map.of("command", "AGG", "status", "101", "information", "No aggregate operation given");
+            String name = statisticName(operation, argument);
+            if (operation.equals("HISTOGRAM") || statistic(new DataSummary(), operation, argument) == null)
+                return Map.of("command", "AGG", "status", "101", "information", "Invalid aggregate operation " + name);
+
+            // In a cluster the other shards scan their own users meanwhile, a user of another shard is scanned there
+            Map<String, String> request = Map.of("content", "AGG", "scope", scope, "target", target);
+            AggregateQuery.Result result;
+            int answered = 1;
+            int servers = 1;
+            if (cluster != null && scope.equals("USER") && !cluster.owns(target)) {
+                try {
+                    result = shardResult(cluster.request(target, request, cluster.aggregateTimeoutMillis()));
+                } catch (IOException e) {
+                    ServerLog.error("Failed to aggregate {} on {}: {}", label, cluster.owner(target), e.getMessage());
+                    result = null;
                 }
+                if (result == null)
+                    return Map.of("command", "AGG", "status", "101", "information",
+                            "Failed to aggregate on the server of " + target);
             } else {
-                while ((line = bufferedReader.readLine()) != null) {
-                    if (username.equals(line.split(" ")[0]) && password.equals(line.split(" ")[1]))
-                        return true;
+                CompletableFuture<List<Map<String, String>>> remote = cluster != null ?
+                        cluster.requestAllAsync(request, cluster.aggregateTimeoutMillis()) : null;
+                List<AggregateQuery.Target> targets = scope.equals("FILE") ? AggregateQuery.everyUser(target) :
+                        AggregateQuery.ofUser(target);
+                try {
+                    result = aggregates.run(targets, (scanned, total) -> channel.write(Map.of("command", "AGG",
+                            "status", "102", "information", "Scanned " + scanned + " of " + total + " " + unit)));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    result = null;
+                }
+                if (result == null)
+                    return Map.of("command", "AGG", "status", "101", "information",
+                            "The server is busy with other aggregate queries, please try again later");
+                if (remote != null) {
+                    servers = cluster.size();
+                    for (Map<String, String> answer : remote.join()) {
+                        AggregateQuery.Result part = shardResult(answer);
+                        if (part != null) {
+                            result.merge(part);
+                            answered++;
+                        }
+                    }
                 }
             }
-            return false;
+
+            if (result.files == 0)
+                return Map.of("command", "AGG", "status", "104", "information", "No data files found for " + label);
+            String counts = result.files + " files" +
+                    (result.skipped > 0 ? ", " + result.skipped + " with lines that are not integers left out" : "") +
+                    (answered < servers ? ", from " + answered + " of " + servers + " servers" : "");
+            return Map.of("command", "AGG", "status", "100", "information",
+                    name + " of " + label + " (" + counts + "): " + statistic(result.summary, operation, argument));
         }
 
-        private Map<String, String> handleUED(String username, String fileID, String content) {
-            String filename = username + "-" + fileID + ".txt";
+        // The partial result of another shard, null if it did not answer or could not run the query
+        private AggregateQuery.Result shardResult(Map<String, String> answer) {
+            if (answer == null || !"100".equals(answer.get("status")))
+                return null;
+            AggregateQuery.Result result = new AggregateQuery.Result(DataSummary.decode(answer.get("content")));
+            result.files = Integer.parseInt(answer.get("files"));
+            result.skipped = Integer.parseInt(answer.get("skipped"));
+            return result;
+        }
+
+        /**
+         * Write the pending presence events until there are none left. Only one delivery of a subscription runs at a
+         * time, and it only holds up this subscriber.
+         */
+        void deliverPresence() {
+            PresenceFeed.Subscription subscription = presence;
+            if (subscription == null)
+                return;
+            String events;
             try {
-                Files.createDirectories(Path.of(username));
-                File file = new File(username + "/" + filename);
-                PrintWriter writer = new PrintWriter(file);
-                writer.print(content);
-                writer.close();
+                while ((events = subscription.drain()) != null)
+                    channel.write(Map.of("command", "EVENT", "content", events));
+            } catch (IOException e) {
+                // Stop delivering, the session ends once its next read fails as well
+                presenceFeed.unsubscribe(subscription);
+                ServerLog.error("Failed to send presence events to Client {}: {}", client, e.getMessage());
+            }
+        }
 
-                LineNumberReader reader = new LineNumberReader(new FileReader(file));
-                while (reader.readLine() != null);
-                SynchronizedFileHandler.addUploadLog(username, fileID, String.valueOf(reader.getLineNumber()));
-                reader.close();
+        boolean presencePending() {
+            PresenceFeed.Subscription subscription = presence;
+            return subscription != null && subscription.pending();
+        }
 
-                return Map.of("command", "UED", "status", "100", "information",
-                        "File " + filename + " uploaded.");
+        // Only the accounts in -Dserver.admins get the statistics, whatever username the message carries
+        private Map<String, String> handleSTATS() {
+            if (!admins.contains(loginUsername))
+                return Map.of("command", "STATS", "status", "101", "information",
+                        "STATS is only available to administrators");
+            return Map.of("command", "STATS", "status", "100", "content", stats.report(), "information",
+                    "Sent the server statistics");
+        }
+
+        private void promptUsername() throws IOException {
+            Map<String, String> info = Map.of("command", "LOGIN", "status", "102", "prompt", "Username: ");
+            channel.write(info);
+            ServerLog.debug("Prompt Client {} for username", client);
+        }
+
+        private void promptPassword() throws IOException {
+            Map<String, String> info = Map.of("command", "LOGIN", "status", "102", "prompt", "Password: ");
+            channel.write(info);
+            ServerLog.debug("Prompt Client {} for password", client);
+        }
+
+        private boolean handleUsername(Map<String, String> map) throws IOException {
+            if ("PROTOCOL".equals(map.get("command")))
+                return handleProtocol(map);
+            if ("RESUME".equals(map.get("command")))
+                return handleResume(map);
+            if ("SHARD".equals(map.get("command")))
+                return handleShard(map);
+
+            String input = map.get("content");
+            ServerLog.debug("Received \"{}\" from Client {}", map.get("content"), client);
+
+            // Another shard owns the account, the client logs in there instead
+            if (cluster != null && input != null && !cluster.owns(input)) {
+                String owner = cluster.owner(input);
+                Map<String, String> info = Map.of("command", "LOGIN", "status", "105", "information",
+                        input + " is served by " + owner, "redirect", owner);
+                channel.write(info);
+                ServerLog.debug("Redirected Client {} ({}) to {}", client, input, owner);
+                return false;
+            }
+
+            if (checkUsernamePassword(input, null)) {
+                loginUsername = input;
+                state = PROMPT_PASSWORD;
+                promptPassword();
+            } else {
+                Map<String, String> info = Map.of("command", "LOGIN", "status", "101", "information",
+                        "The username is invalid, please check your input username and try again");
+                channel.write(info);
+                ServerLog.debug("Sent \"{}\" to Client {}", info.get("information"), client);
+                promptUsername();
+            }
+            return true;
+        }
+
+        // Switch to the binary protocol if the client asks for it, then prompt for the username again in it
+        private boolean handleProtocol(Map<String, String> map) throws IOException {
+            ServerLog.debug("Client {} requested protocol {}", client, map.get("content"));
+            if (!"BINARY".equals(map.get("content"))) {
+                channel.write(Map.of("command", "PROTOCOL", "status", "101", "information",
+                        "Unknown protocol " + map.get("content")));
+                promptUsername();
+                return true;
+            }
+            channel.write(Map.of("command", "PROTOCOL", "status", "100", "content", "BINARY"));
+            channel = new MessageChannel.BinaryChannel(MessageChannel.input(connection),
+                    MessageChannel.output(connection));
+            promptUsername();
+            return true;
+        }
+
+        /**
+         * Answer a request of another shard of the cluster (content AED: the active devices in the edge-device-log.txt
+         * format, except the one of the username; LKP: the endpoint of the device; AGG: the merged summary of this
+         * shard's files in the scope). The connection stays at the username prompt, so the shard can send the next
+         * request on it.
+         */
+        private boolean handleShard(Map<String, String> map) throws IOException {
+            if (cluster == null || !cluster.authorized(map.get("key"))) {
+                channel.write(Map.of("command", "SHARD", "status", "101", "information",
+                        "Not a member of this cluster"));
+                ServerLog.error("Client {} sent a shard request without the cluster key", client);
+                return false;
+            }
+
+            long started = System.nanoTime();
+            Map<String, String> info;
+            if ("AED".equals(map.get("content"))) {
+                StringBuilder records = new StringBuilder();
+                for (DeviceRegistry.Device device : deviceRegistry.devices()) {
+                    if (!device.username.equals(map.get("username")))
+                        records.append(DeviceRegistry.record(device.order, device));
+                }
+                info = Map.of("command", "SHARD", "status", "100", "content", records.toString());
+                stats.command("SHARD AED", started, false);
+            } else if ("LKP".equals(map.get("content")) && map.get("device") != null) {
+                DeviceRegistry.Device device = SynchronizedFileHandler.lookupEdgeDevice(map.get("device"));
+                info = device == null ? Map.of("command", "SHARD", "status", "104") :
+                        Map.of("command", "SHARD", "status", "100", "address", device.address, "port",
+                                device.udpPort);
+                stats.command("SHARD LKP", started, false);
+            } else if ("AGG".equals(map.get("content"))) {
+                info = shardAggregate(map.get("scope"), map.get("target"));
+                stats.command("SHARD AGG", started, !"100".equals(info.get("status")));
+            } else {
+                info = Map.of("command", "SHARD", "status", "101", "information",
+                        "Unknown shard request " + map.get("content"));
+            }
+            channel.write(info);
+            return true;
+        }
+
+        // This shard's part of an AGG, the summary of its files without computing the operation
+        private Map<String, String> shardAggregate(String scope, String fileIDOrUsername) {
+            try {
+                List<AggregateQuery.Target> targets;
+                if ("FILE".equals(scope) && fileIDOrUsername != null && fileIDOrUsername.matches("\\d+"))
+                    targets = AggregateQuery.everyUser(fileIDOrUsername);
+                else if ("USER".equals(scope) && fileIDOrUsername != null && CredentialIndex.contains(fileIDOrUsername))
+                    targets = AggregateQuery.ofUser(fileIDOrUsername);
+                else
+                    return Map.of("command", "SHARD", "status", "101", "information",
+                            "Unknown aggregate scope " + scope);
+                AggregateQuery.Result result = aggregates.run(targets, null);
+                if (result == null)
+                    return Map.of("command", "SHARD", "status", "101", "information", "Busy");
+                return Map.of("command", "SHARD", "status", "100", "content", result.summary.encode(), "files",
+                        String.valueOf(result.files), "skipped", String.valueOf(result.skipped));
             } catch (IOException e) {
-                e.printStackTrace();
-                return Map.of("command", "UED", "status", "101", "information",
-                        "File " + filename + " upload failed.");
+                ServerLog.error("Aggregate query failed: {}", e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return Map.of("command", "SHARD", "status", "101", "information", "Aggregate query failed");
+        }
+
+        /**
+         * Resume the session of a device that lost its connection, with the token from its last login or resume
+         * instead of the username and password. The session the token was issued to is closed if it is still open.
+         * The device keeps its active entry if it was kept for the grace period and its address is unchanged, so
+         * resuming reads no file and writes no log record.
+         */
+        private boolean handleResume(Map<String, String> map) throws IOException {
+            SessionTokens.Token<Session> resumed = sessionTokens.resume(map.get("token"));
+            if (resumed == null || !CredentialIndex.contains(resumed.username) || lockouts.isLocked(resumed.username)) {
+                Map<String, String> info = Map.of("command", "RESUME", "status", "101", "information",
+                        "The session can not be resumed, please log in again");
+                channel.write(info);
+                ServerLog.debug("Sent \"{}\" to Client {}", info.get("information"), client);
+                promptUsername();
+                return true;
+            }
+
+            loginUsername = resumed.username;
+            ServerLog.info("Client {} resumed the session of {}", client, loginUsername);
+            resumed.session.connection.close();
+            sessionTokens.loggedIn(loginUsername, this);
+            if (!deviceRegistry.isActive(loginUsername, clientIP, map.get("content")))
+                SynchronizedFileHandler.handleEdgeDeviceLog(0, loginUsername, clientIP, map.get("content"));
+            loginStatus = Map.of("status", "0", "username", loginUsername);
+            state = COMMANDS;
+            token = sessionTokens.issue(loginUsername, this);
+            stats.resumed();
+
+            Map<String, String> info = Map.of("command", "RESUME", "status", "100", "information",
+                    loginUsername + ", your session is resumed.", "username", loginUsername, "token", token);
+            channel.write(info);
+            ServerLog.debug("Sent \"{}\" to Client {}", info.get("information"), client);
+            return true;
+        }
+
+        private boolean handlePassword(Map<String, String> map) throws IOException {
+            Map<String, String> info;
+            String input = map.get("content");
+            ServerLog.debug("Received \"{}\" from Client {}", map.get("content"), client);
+
+            if (lockouts.isLocked(loginUsername)) {
+                stats.failedLogin();
+                info = Map.of("command", "LOGIN", "status", "103", "information",
+                        "Your account is blocked due to multiple authentication failures. " +
+                                "Please try again later.");
+                channel.write(info);
+                ServerLog.debug("Sent \"{}\" to Client {}", info.get("information"), client);
+                loginStatus = Map.of("status", "2", "username", loginUsername);
+                return false;
             }
+
+            if (checkUsernamePassword(loginUsername, input)) {
+                token = sessionTokens.issue(loginUsername, this);
+                info = Map.of("command", "LOGIN", "status", "100", "information",
+                        loginUsername + ", you have successfully logged in. Welcome!", "username", loginUsername,
+                        "token", token);
+                channel.write(info);
+                ServerLog.debug("Sent \"{}\" to Client {}", info.get("information"), client);
+                state = DEVICE_INFO;
+                return true;
+            }
+
+            failAttempts++;
+            stats.failedLogin();
+            if (failAttempts == NUMBER_OF_CONSECUTIVE_FAILED_ATTEMPTS)
+                info = Map.of("command", "LOGIN", "status", "103", "information",
+                        "Your account is blocked due to multiple authentication failures. " +
+                                "Please try again later.");
+            else
+                info = Map.of("command", "LOGIN", "status", "101", "information",
+                        "Wrong password, please try again!");
+            channel.write(info);
+            ServerLog.debug("Sent \"{}\" to Client {}", info.get("information"), client);
+
+            if (failAttempts < NUMBER_OF_CONSECUTIVE_FAILED_ATTEMPTS) {
+                promptPassword();
+                return true;
+            }
+            loginStatus = Map.of("status", "1", "username", loginUsername);
+            return false;
         }
 
-        private Map<String, String> handleSCS(String username, String fileID, String operation) {
+        private boolean handleDeviceInfo(Map<String, String> map) throws IOException {
+            sessionTokens.loggedIn(loginUsername, this);
+            SynchronizedFileHandler.handleEdgeDeviceLog(0, loginUsername, clientIP, map.get("content"));
+            ServerLog.debug("Received \"{}\" from Client {}", map.get("content"), client);
+            loginStatus = Map.of("status", "0", "username", loginUsername);
+            state = COMMANDS;
+            return true;
+        }
+
+        private boolean checkUsernamePassword(String username, String password) {
+            if (password == null)
+                return CredentialIndex.contains(username);
+            return CredentialIndex.matches(username, password);
+        }
+
+        private Map<String, String> handleUED(String username, String fileID, String content) {
+            DataFileUpload upload = new DataFileUpload(username, fileID);
+            upload.write(content);
+            return upload.finish();
+        }
+
+        /**
+         * Handle one chunk of a chunked UED. The first chunk opens the upload and the chunk marked as last completes
+         * it, so only the last chunk gets a response.
+         */
+        private Map<String, String> handleUEDChunk(String username, String fileID, String chunk, boolean last) {
+            if (upload == null)
+                upload = new DataFileUpload(username, fileID);
+            upload.write(chunk);
+            if (!last)
+                return null;
+
+            Map<String, String> info = upload.finish();
+            upload = null;
+            return info;
+        }
+
+        @SuppressWarnings("try")
+        private Map<String, String> handleSCS(String username, String fileID, String operation, String argument) {
             String filename = username + "-" + fileID + ".txt";
-            try {
-                File file = new File(username + "/" + filename);
-
-                List<Integer> integers = new ArrayList<>();
-                BufferedReader bufferedReader = new BufferedReader(new FileReader(file));
-                String line = bufferedReader.readLine();
-                while (line != null) {
-                    integers.add(Integer.parseInt(line));
-                    line = bufferedReader.readLine();
-                }
-                bufferedReader.close();
+            if (operation == null)
+                return Map.of("command", "SCS", "status", "101", "information", "No computation operation given");
+            try (FileLocks.Held held = fileLocks.read(username, fileID)) {
+                Path file = Path.of(username, filename);
+                DataSummary summary = DataSummary.of(file);
+                if (!summary.valid)
+                    throw new IOException("File " + filename + " contains lines that are not integers");
 
-                switch (operation) {
-                    case "AVERAGE":
-                        double average = integers.stream().mapToDouble(a -> a).average().orElse(0.0);
-                        return Map.of("command", "SCS", "status", "100", "information",
-                                "AVERAGE of " + filename + ": " + average);
-                    case "MIN":
-                        int min = integers.stream().mapToInt(a -> a).min().orElse(0);
-                        return Map.of("command", "SCS", "status", "100", "information",
-                                "MIN of " + filename + ": " + min);
-                    case "MAX":
-                        int max = integers.stream().mapToInt(a -> a).max().orElse(0);
+                if (operation.equals("HISTOGRAM")) {
+                    int buckets = argument == null ? 0 : Integer.parseInt(argument);
+                    if (buckets >= 1 && buckets <= MAX_HISTOGRAM_BUCKETS)
                         return Map.of("command", "SCS", "status", "100", "information",
-                                "MAX of " + filename + ": " + max);
-                    case "SUM":
-                        int sum = integers.stream().mapToInt(a -> a).sum();
+                                "HISTOGRAM of " + filename + ":\n" + histogram(file, summary, buckets));
+                } else {
+                    String value = statistic(summary, operation, argument);
+                    if (value != null)
                         return Map.of("command", "SCS", "status", "100", "information",
-                                "SUM of " + filename + ": " + sum);
+                                statisticName(operation, argument) + " of " + filename + ": " + value);
                 }
-            } catch (FileNotFoundException e) {
+            } catch (NoSuchFileException e) {
                 return Map.of("command", "SCS", "status", "104", "information", "File: "
                         + filename + " not found on server");
             } catch (IOException e) {
-                e.printStackTrace();
+                ServerLog.error("SCS on {} failed: {}", filename, e);
+            } catch (NumberFormatException e) {
+                ServerLog.error("Invalid argument {} for {}", argument, operation);
             }
             return Map.of("command", "SCS", "status", "101", "information", "Server " +
                     "computing service failed");
         }
 
+        /**
+         * @param operation not null
+         * @return the result of an SCS operation other than HISTOGRAM, or null if the operation is unknown or its
+         * argument missing or out of range
+         * @throws NumberFormatException if the argument is not a number
+         */
+        private String statistic(DataSummary summary, String operation, String argument) {
+            switch (operation) {
+                case "AVERAGE":
+                    return String.valueOf(summary.average());
+                case "MIN":
+                    return String.valueOf(summary.min());
+                case "MAX":
+                    return String.valueOf(summary.max());
+                case "SUM":
+                    return String.valueOf(summary.sum);
+                case "MEDIAN":
+                    return summary.percentile(50) + " (+/- 1%)";
+                case "PERCENTILE":
+                    if (argument == null)
+                        return null;
+                    double percentile = Double.parseDouble(argument);
+                    if (percentile < 0 || percentile > 100)
+                        return null;
+                    return summary.percentile(percentile) + " (+/- 1%)";
+                case "STDDEV":
+                    return String.valueOf(summary.standardDeviation());
+            }
+            return null;
+        }
+
+        private String statisticName(String operation, String argument) {
+            return operation.equals("PERCENTILE") && argument != null ? "PERCENTILE " + argument : operation;
+        }
+
+        /**
+         * Count the values of a data file in equal-width buckets between its min and max, in one pass over the file
+         * with one counter per bucket.
+         */
+        private String histogram(Path file, DataSummary summary, int buckets) throws IOException {
+            long min = summary.min();
+            long range = (long) summary.max() - min + 1;
+            int k = (int) Math.min(buckets, range);
+            long[] counts = new long[k];
+            SampleFile.forEach(file, value -> counts[(int) ((value - min) * k / range)]++);
+
+            // Bucket i holds the values from min + ceil(i * range / k) up to the start of the next bucket
+            StringBuilder result = new StringBuilder();
+            for (int i = 0; i < k; i++) {
+                long from = min + (i * range + k - 1) / k;
+                long to = min + ((i + 1) * range + k - 1) / k - 1;
+                result.append('[').append(from).append(", ").append(to).append("]: ").append(counts[i]);
+                if (i < k - 1)
+                    result.append('\n');
+            }
+            return result.toString();
+        }
+
+        @SuppressWarnings("try")
         private Map<String, String> handleDTE(String username, String fileID) {
             String filename = username + "-" + fileID + ".txt";
 
-            try {
-                File file = new File(username + "/" + filename);
-
-                LineNumberReader reader = new LineNumberReader(new FileReader(file));
-                while (reader.readLine() != null);
-
-                if (file.delete()) {
-                    SynchronizedFileHandler.addDeleteLog(username, fileID, String.valueOf(reader.getLineNumber()));
-                    reader.close();
-                    return Map.of("command", "DTE", "status", "100", "information", "File: " +
-                            filename + " deleted.");
-                } else
-                    throw new IOException();
-            } catch (FileNotFoundException e) {
+            try (FileLocks.Held held = fileLocks.write(username, fileID)) {
+                Path file = Path.of(username, filename);
+
+                // The line count comes from the summary unless the file has to be summarised again
+                DataSummary summary = DataSummary.load(file, Files.size(file));
+                long lines = summary != null ? summary.lines : DataSummary.compute(file).lines;
+
+                Files.delete(file);
+                DataSummary.delete(file);
+                SynchronizedFileHandler.addDeleteLog(username, fileID, String.valueOf(lines));
+                return Map.of("command", "DTE", "status", "100", "information", "File: " +
+                        filename + " deleted.");
+            } catch (NoSuchFileException e) {
                 return Map.of("command", "DTE", "status", "104", "information", "File: " +
                         filename + " not found on the server");
             } catch (IOException e) {
@@ -324,7 +866,92 @@ public class Server {
             }
         }
 
+        /**
+         * Send bytes offset to offset + length (default: the rest) of a stored data file. The response tells the
+         * client the range and the total size, then the bytes follow on the socket outside of any message, sent by
+         * the kernel straight from the file (transferTo). Devices only get their own files, whatever username the
+         * message carries.
+         *
+         * The response carries the version of the file (size and modification time). A download that resumes at an
+         * offset has to send the version it started with; if the file was replaced since, or the offset is beyond its
+         * end, the whole file is sent from 0 instead, and the client starts over.
+         */
+        @SuppressWarnings("try")
+        private boolean handleDWN(String username, String fileID, String offset, String length, String version,
+                                  long started) throws IOException {
+            Map<String, String> info;
+            if (!loginUsername.equals(username) || fileID == null || !fileID.matches("\\d+")) {
+                info = Map.of("command", "DWN", "status", "101", "information",
+                        "DWN is only available for your own files, with a numeric fileID");
+                channel.write(info);
+                stats.command("DWN", started, true);
+                ServerLog.debug("Sent \"{}\" to Client {} ({})", info.get("information"), client, loginUsername);
+                return true;
+            }
+
+            String filename = username + "-" + fileID + ".txt";
+            FileChannel file = null;
+            long start = 0;
+            long count = 0;
+            try {
+                // Open under the read lock, an upload or deletion afterwards does not change the file already open
+                String current;
+                try (FileLocks.Held held = fileLocks.read(username, fileID)) {
+                    Path path = Path.of(username, filename);
+                    file = FileChannel.open(path, StandardOpenOption.READ);
+                    current = file.size() + "-" + Files.getLastModifiedTime(path).toMillis();
+                }
+                long size = file.size();
+                start = offset == null ? 0 : Long.parseLong(offset);
+                if (start > 0 && (!current.equals(version) || start > size)) {
+                    ServerLog.debug("Client {} ({}) resumes {} of another version, sending it from 0", client,
+                            username, filename);
+                    start = 0;
+                    length = null;
+                }
+                count = length == null ? size - start : Long.parseLong(length);
+                if (start < 0 || count < 0 || start + count > size)
+                    info = Map.of("command", "DWN", "status", "101", "information", "Invalid range " + offset +
+                            "+" + length + " of " + filename + " (" + size + " bytes)");
+                else
+                    info = Map.of("command", "DWN", "status", "100", "information", "Sending " + filename,
+                            "size", String.valueOf(size), "offset", String.valueOf(start),
+                            "length", String.valueOf(count), "version", current);
+            } catch (NoSuchFileException e) {
+                info = Map.of("command", "DWN", "status", "104", "information", "File: " + filename +
+                        " not found on server");
+            } catch (NumberFormatException e) {
+                info = Map.of("command", "DWN", "status", "101", "information", "Invalid range " + offset +
+                        "+" + length + " of " + filename);
+            }
+
+            // Holding the channel keeps presence events from being written between the response and the file
+            try {
+                synchronized (channel) {
+                    channel.write(info);
+                    ServerLog.debug("Sent \"{}\" to Client {} ({})", info.get("information"), client, username);
+                    if (!info.get("status").equals("100")) {
+                        stats.command("DWN", started, true);
+                        return true;
+                    }
+
+                    WritableByteChannel target = connection.getChannel() != null ? connection.getChannel() :
+                            Channels.newChannel(connection.getOutputStream());
+                    for (long sent = 0; sent < count; )
+                        sent += file.transferTo(start + sent, count - sent, target);
+                }
+                stats.command("DWN", started, false);
+                ServerLog.debug("Sent {} bytes of {} to Client {} ({})", count, filename, client, username);
+                return true;
+            } finally {
+                if (file != null)
+                    file.close();
+            }
+        }
+
         private Map<String, String> handleAED(String username) {
+            if (cluster != null)
+                return handleClusterAED(username);
             try {
                 String content = SynchronizedFileHandler.handleEdgeDeviceLog(2, username);
                 return Map.of("command", "AED", "status", "100", "content", content,
@@ -334,104 +961,440 @@ public class Server {
                         "Failed to get active edge devices.");
             }
         }
+
+        // The active devices of every shard, merged in login order. Shards that do not answer are left out.
+        private Map<String, String> handleClusterAED(String username) {
+            List<DeviceRegistry.Device> devices = new ArrayList<>(deviceRegistry.devices());
+            int answered = 1;
+            for (Map<String, String> answer : cluster.requestAll(Map.of("content", "AED", "username", username))) {
+                if (answer == null || !"100".equals(answer.get("status")))
+                    continue;
+                answered++;
+                for (String record : answer.get("content").split("\n")) {
+                    if (!record.isEmpty())
+                        devices.add(DeviceRegistry.parse(record));
+                }
+            }
+            devices.sort(DeviceRegistry.BY_ACTIVE_FROM);
+            return Map.of("command", "AED", "status", "100", "content", DeviceRegistry.listing(devices, username),
+                    "information", answered == cluster.size() ? "Successfully found the list of active devices" :
+                            "Found the active devices of " + answered + " of " + cluster.size() + " servers");
+        }
+
+        // The endpoint of one device, an index lookup instead of the whole AED listing
+        private Map<String, String> handleLKP(String deviceName) {
+            if (deviceName == null)
+                return Map.of("command", "LKP", "status", "101", "information", "No device name given");
+            if (cluster != null && !cluster.owns(deviceName))
+                return handleClusterLKP(deviceName);
+            DeviceRegistry.Device device = SynchronizedFileHandler.lookupEdgeDevice(deviceName);
+            if (device == null)
+                return Map.of("command", "LKP", "status", "104", "device", deviceName, "information",
+                        deviceName + " is offline");
+            return Map.of("command", "LKP", "status", "100", "device", deviceName, "address", device.address,
+                    "port", device.udpPort, "information", "Found the endpoint of " + deviceName);
+        }
+
+        // A device of another shard is looked up there
+        private Map<String, String> handleClusterLKP(String deviceName) {
+            Map<String, String> answer;
+            try {
+                answer = cluster.request(deviceName, Map.of("content", "LKP", "device", deviceName));
+            } catch (IOException e) {
+                ServerLog.error("Failed to look up {} on {}: {}", deviceName, cluster.owner(deviceName),
+                        e.getMessage());
+                return Map.of("command", "LKP", "status", "101", "information",
+                        "Failed to reach the server of " + deviceName);
+            }
+            if (!"100".equals(answer.get("status")))
+                return Map.of("command", "LKP", "status", "104", "device", deviceName, "information",
+                        deviceName + " is offline");
+            return Map.of("command", "LKP", "status", "100", "device", deviceName, "address", answer.get("address"),
+                    "port", answer.get("port"), "information", "Found the endpoint of " + deviceName);
+        }
     }
 
-    private static class SynchronizedFileHandler {
-        private static synchronized String handleEdgeDeviceLog(int mode, String... args) throws IOException {
-            File file = new File("edge-device-log.txt");
-            switch (mode) {
-                case 0:
-                    try {
-                        file.createNewFile(); // Create this log file if it is not existed
-
-                        // Get the sequence number for current record
-                        LineNumberReader reader = new LineNumberReader(new FileReader(file));
-                        while (reader.readLine() != null);
-                        int seq = reader.getLineNumber() + 1;
-                        reader.close();
-
-                        // Write the record to the end of the file
-                        FileWriter writer = new FileWriter(file, true);
-                        String content = join(String.valueOf(seq), getDateTime(), args[0], args[1], args[2]);
-                        writer.write(content);
-                        writer.close();
-                        System.out.println("SERVER LOG: Added a record to edge-device-log.txt");
-                    } catch (IOException e) {
-                        throw new IOException("SERVER ERROR: Failed to add record to edge-device-log.txt");
+    /**
+     * Writes an uploaded data file in a single pass, summarising it as the content arrives. The content goes to a
+     * .part file that atomically replaces the data file once the upload is complete.
+     */
+    private static class DataFileUpload {
+        private final String username;
+        private final String fileID;
+        private final String filename;
+        private final Path file;
+        private Path partFile;
+
+        private Writer writer;
+        private IOException failure;
+        private final DataSummary summary = new DataSummary();
+
+        DataFileUpload(String username, String fileID) {
+            this.username = username;
+            this.fileID = fileID;
+            filename = username + "-" + fileID + ".txt";
+            file = Path.of(username, filename);
+            try {
+                // Every upload has its own .part file, so concurrent uploads of the same file do not mix
+                Files.createDirectories(Path.of(username));
+                partFile = Files.createTempFile(Path.of(username), filename + ".", ".part");
+                writer = Files.newBufferedWriter(partFile);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        void write(String content) {
+            if (failure != null)
+                return;
+            try {
+                writer.write(content);
+            } catch (IOException e) {
+                failure = e;
+                return;
+            }
+            stats.uploaded(content.length()); // Data files are ASCII, one byte per character
+
+            summary.accept(content);
+        }
+
+        @SuppressWarnings("try")
+        Map<String, String> finish() {
+            try {
+                if (failure != null)
+                    throw failure;
+                writer.close();
+                summary.finish();
+
+                // Files with lines that are not integers stay text, so SCS can still report them
+                if (storage != SampleFile.Format.TEXT && summary.valid)
+                    SampleFile.convert(partFile, partFile, storage);
+
+                // Readers only wait for the swap, not for the upload itself
+                try (FileLocks.Held held = fileLocks.write(username, fileID)) {
+                    Files.move(partFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    summary.save(file, Files.size(file));
+                }
+
+                SynchronizedFileHandler.addUploadLog(username, fileID, String.valueOf(summary.lines));
+
+                return Map.of("command", "UED", "status", "100", "information",
+                        "File " + filename + " uploaded.");
+            } catch (IOException e) {
+                ServerLog.error("Upload of {} failed: {}", filename, e);
+                abort();
+                return Map.of("command", "UED", "status", "101", "information",
+                        "File " + filename + " upload failed.");
+            }
+        }
+
+        // Drop an upload that will never be completed
+        void abort() {
+            try {
+                if (writer != null)
+                    writer.close();
+                if (partFile != null)
+                    Files.deleteIfExists(partFile);
+            } catch (IOException e) {
+                ServerLog.error("Failed to remove {}", partFile);
+            }
+        }
+    }
+
+    // Drives one Session on its own thread, which blocks while the client is idle
+    private static class ServerThread implements Runnable {
+        private final Session session;
+
+        ServerThread(Socket connection) {
+            this.session = new Session(connection);
+        }
+
+        @Override
+        public void run() {
+            if (session.start()) {
+                while (true) {
+                    if (!session.step())
+                        break;
+                }
+            }
+            session.close();
+        }
+    }
+
+    /**
+     * Event loop engine. Idle sessions are parked on a single Selector and own no thread at all; when a message
+     * arrives the session is handed to a small worker pool, which handles exactly one message and parks it again.
+     * Presence events are delivered the same way: the session leaves the selector, a worker writes the events in
+     * blocking mode and parks it again.
+     *
+     * A new connection is parked as soon as the login prompt is written, so it only gets a worker once the client
+     * sends something. Reads on a worker time out after -Dserver.readTimeoutMillis, which closes a connection that
+     * stops half way through a message instead of holding the worker.
+     */
+    private static class SelectorEngine implements Runnable {
+        private final Selector selector;
+        private final ServerSocketChannel serverChannel;
+        private final ExecutorService workers;
+        private final int readTimeoutMillis;
+        private final Queue<Session> parked = new ConcurrentLinkedQueue<>();
+        private final Queue<Session> waking = new ConcurrentLinkedQueue<>(); // Sessions with presence events
+
+        SelectorEngine(int port, int workerCount, int readTimeoutMillis) throws IOException {
+            this.readTimeoutMillis = readTimeoutMillis;
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            workers = Executors.newFixedThreadPool(workerCount);
+        }
+
+        @Override
+        public void run() {
+            List<Session> ready = new ArrayList<>();
+            List<Session> delivering = new ArrayList<>();
+            while (true) {
+                try {
+                    if (selector.selectedKeys().isEmpty())
+                        selector.select();
+
+                    // Register the sessions that finished their message with the selector again, unless presence
+                    // events came in meanwhile
+                    Session session;
+                    while ((session = parked.poll()) != null) {
+                        if (session.presencePending()) {
+                            delivering.add(session);
+                            continue;
+                        }
+                        try {
+                            session.socketChannel().configureBlocking(false);
+                            session.socketChannel().register(selector, SelectionKey.OP_READ, session);
+                        } catch (IOException e) {
+                            workers.execute(session::close);
+                        }
                     }
-                    break;
-                case 1:
-                    try {
-                        BufferedReader bufferedReader = new BufferedReader(new FileReader(file));
-                        List<String> content = new LinkedList<>();
-                        String line;
-                        while ((line = bufferedReader.readLine()) != null) {
-                            if (!line.split("; ")[2].equals(args[0]))
-                                content.add(line.substring(line.indexOf(' ') + 1));
+
+                    // A session that is not registered is with a worker, and is checked for events when it is parked
+                    while ((session = waking.poll()) != null) {
+                        SelectionKey key = session.socketChannel().keyFor(selector);
+                        if (key != null && key.isValid()) {
+                            key.cancel();
+                            delivering.add(session);
                         }
-                        bufferedReader.close();
+                    }
 
-                        PrintWriter writer = new PrintWriter(file);
-                        int index = 1;
-                        for (String c: content) {
-                            writer.println(index + "; " + c);
-                            index++;
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        if (!key.isValid())
+                            continue;
+                        if (key.isAcceptable()) {
+                            SocketChannel channel = serverChannel.accept();
+                            if (channel != null) {
+                                channel.socket().setSoTimeout(readTimeoutMillis);
+                                Session accepted = new Session(channel.socket());
+                                accepted.presenceDelivery = () -> wake(accepted);
+                                workers.execute(() -> {
+                                    if (accepted.start())
+                                        park(accepted);
+                                    else
+                                        accepted.close();
+                                });
+                            }
+                        } else if (key.isReadable()) {
+                            key.cancel();
+                            ready.add((Session) key.attachment());
                         }
-                        writer.close();
-                        System.out.println("SERVER LOG: Deleted a record from edge-device-log.txt");
-                    } catch (IOException e) {
-                        throw new IOException("SERVER ERROR: Failed to delete record from edge-device-log.txt");
                     }
+
+                    if (!ready.isEmpty() || !delivering.isEmpty()) {
+                        // The cancelled keys are only deregistered by the next selection operation, and a channel
+                        // can not switch back to blocking mode while it is still registered.
+                        selector.selectNow();
+                        for (Session readable : ready) {
+                            readable.socketChannel().configureBlocking(true);
+                            workers.execute(() -> {
+                                // Pipelined responses need the channel in blocking mode, so park it once they are sent
+                                if (readable.step())
+                                    readable.idle().thenRun(() -> park(readable));
+                                else
+                                    readable.close();
+                            });
+                        }
+                        ready.clear();
+                        for (Session subscriber : delivering) {
+                            subscriber.socketChannel().configureBlocking(true);
+                            workers.execute(() -> {
+                                subscriber.deliverPresence();
+                                park(subscriber);
+                            });
+                        }
+                        delivering.clear();
+                    }
+                } catch (IOException e) {
+                    ServerLog.error("{}", e.getMessage());
+                }
+            }
+        }
+
+        private void park(Session session) {
+            parked.add(session);
+            selector.wakeup();
+        }
+
+        private void wake(Session session) {
+            waking.add(session);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Index of credentials.txt. The file is loaded into a hash map once at startup and rebuilt by a watcher thread
+     * whenever it changes on disk, so checking a login does not touch the file.
+     */
+    private static class CredentialIndex {
+        private static final Path FILE = Path.of("credentials.txt");
+
+        // Replaced as a whole on every reload, so readers always see one consistent version of the file
+        private static volatile Map<String, String> credentials = Map.of();
+
+        private static boolean contains(String username) {
+            return credentials.containsKey(username);
+        }
+
+        private static boolean matches(String username, String password) {
+            return password.equals(credentials.get(username));
+        }
+
+        private static void load() {
+            try {
+                reload();
+            } catch (IOException e) {
+                ServerLog.error("Failed to load credentials.txt, no account can log in until it is created");
+            }
+
+            Thread watcher = new Thread(CredentialIndex::watch, "credentials-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+
+        private static void reload() throws IOException {
+            Map<String, String> index = new HashMap<>();
+            try (BufferedReader reader = Files.newBufferedReader(FILE)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] params = line.split(" ");
+                    // The first line of a username wins, as it did when the file was scanned from the top
+                    if (!index.containsKey(params[0]))
+                        index.put(params[0], params.length > 1 ? params[1] : null);
+                }
+            }
+            credentials = index;
+            ServerLog.info("Loaded {} accounts from credentials.txt", index.size());
+        }
+
+        private static void watch() {
+            Path directory = FILE.toAbsolutePath().getParent();
+            try (WatchService watchService = directory.getFileSystem().newWatchService()) {
+                directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+                while (true) {
+                    WatchKey key = watchService.take();
+                    boolean changed = false;
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (FILE.equals(event.context()))
+                            changed = true;
+                    }
+                    key.reset();
+
+                    if (changed) {
+                        try {
+                            reload();
+                        } catch (IOException e) {
+                            // Keep serving the previous version until the file can be read again
+                            ServerLog.error("Failed to reload credentials.txt");
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                ServerLog.error("Stopped watching credentials.txt: {}", e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class SynchronizedFileHandler {
+        /**
+         * Mode 0 registers the device of a user who logged in (args: username, IP address, UDP port), mode 1 removes
+         * it again (args: username) and mode 2 returns the AED listing for a user (args: username). Modes 0 and 1 also
+         * publish the join or leave to the presence subscribers. The registry is concurrent, so unlike the other
+         * methods this one does not lock the class.
+         */
+        private static String handleEdgeDeviceLog(int mode, String... args) throws IOException {
+            long started = System.nanoTime();
+            switch (mode) {
+                case 0:
+                    deviceRegistry.login(args[0], getDateTime(), args[1], args[2]);
+                    presenceFeed.joined(args[0], args[1], args[2]);
+                    ServerLog.debug("Added a record to edge-device-log.txt");
+                    stats.fileHandler("handleEdgeDeviceLog login", started);
+                    break;
+                case 1:
+                    deviceRegistry.logout(args[0]);
+                    presenceFeed.left(args[0]);
+                    ServerLog.debug("Deleted a record from edge-device-log.txt");
+                    stats.fileHandler("handleEdgeDeviceLog logout", started);
                     break;
                 case 2:
-                    BufferedReader bufferedReader = new BufferedReader(new FileReader(file));
-                    StringBuilder result = new StringBuilder();
-                    String line;
-                    while ((line = bufferedReader.readLine()) != null) {
-                        String[] params = line.split("; ");
-                        if (!params[2].equals(args[0]))
-                            result.append("Username: ")
-                                    .append(params[2])
-                                    .append(", Active From: ")
-                                    .append(params[1])
-                                    .append(", IP Address: ")
-                                    .append(params[3])
-                                    .append(", UDP Port: ")
-                                    .append(params[4])
-                                    .append("\n");
-                    }
-                    bufferedReader.close();
-                    return result.toString().equals("") ? "No other active edge devices\n" : result.toString();
+                    String devices = deviceRegistry.activeDevices(args[0]);
+                    stats.fileHandler("handleEdgeDeviceLog list", started);
+                    return devices;
             }
             return null;
         }
 
-        private static synchronized void addUploadLog(String... args) throws IOException {
-            File file = new File("upload-log.txt");
-            file.createNewFile(); // Create this log file if it is not existed
+        /**
+         * @return the active device of a user, or null if the user is offline
+         */
+        private static DeviceRegistry.Device lookupEdgeDevice(String username) {
+            long started = System.nanoTime();
+            DeviceRegistry.Device device = deviceRegistry.device(username);
+            stats.fileHandler("lookupEdgeDevice", started);
+            return device;
+        }
 
-            // Write the record to the end of the file
-            FileWriter writer = new FileWriter(file, true);
+        /**
+         * Queue a record for upload-log.txt.
+         *
+         * @return completes once the record is written, for callers that need it to be durable
+         */
+        private static CompletableFuture<Void> addUploadLog(String... args) {
+            long started = System.nanoTime();
             String content = join(args[0], getDateTime(), args[1], args[2]);
-            writer.write(content);
-            writer.close();
-            System.out.println("SERVER LOG: Added a record to upload-log.txt");
+            ServerLog.debug("Added a record to upload-log.txt");
+            CompletableFuture<Void> written = auditLog.append(Path.of("upload-log.txt"), content);
+            stats.fileHandler("addUploadLog", started);
+            return written;
         }
 
-        private static synchronized void addDeleteLog(String... args) throws IOException {
-            File file = new File("deletion-log.txt");
-            file.createNewFile(); // Create this log file if it is not existed
-
-            // Write the record to the end of the file
-            FileWriter writer = new FileWriter(file, true);
+        /**
+         * Queue a record for deletion-log.txt.
+         *
+         * @return completes once the record is written, for callers that need it to be durable
+         */
+        private static CompletableFuture<Void> addDeleteLog(String... args) {
+            long started = System.nanoTime();
             String content = join(args[0], getDateTime(), args[1], args[2]);
-            writer.write(content);
-            writer.close();
-            System.out.println("SERVER LOG: Added a record to deletion-log.txt");
+            ServerLog.debug("Added a record to deletion-log.txt");
+            CompletableFuture<Void> written = auditLog.append(Path.of("deletion-log.txt"), content);
+            stats.fileHandler("addDeleteLog", started);
+            return written;
         }
 
         private static String getDateTime() {
-            return DateTimeFormatter.ofPattern("dd MMMM yyyy HH:mm:ss", Locale.US).format(LocalDateTime.now());
+            return DeviceRegistry.ACTIVE_FROM.format(LocalDateTime.now());
         }
 
         private static String join(String... args) {
@@ -451,18 +1414,178 @@ public class Server {
         PORT = Integer.parseInt(args[0]);
         NUMBER_OF_CONSECUTIVE_FAILED_ATTEMPTS = Integer.parseInt(args[1]);
 
-        blockedDevices = new HashSet<>();
+        // Failed accounts are blocked for -Dserver.lockoutSeconds seconds
+        lockouts = new LockoutManager(TimeUnit.SECONDS.toMillis(Long.getLong("server.lockoutSeconds", 10)));
+        stats.lockoutManager(lockouts);
+        CredentialIndex.load();
+
+        // One shard of a cluster when started with -Dserver.cluster, see README.md
+        cluster = Cluster.fromProperties(PORT);
+        if (cluster != null)
+            ServerLog.info("Running as {}", cluster);
+
+        // A device that loses its connection can resume its session for -Dserver.tokenSeconds, and its active entry
+        // is kept for -Dserver.resumeGraceSeconds
+        sessionTokens = new SessionTokens<>(TimeUnit.SECONDS.toMillis(Long.getLong("server.tokenSeconds", 600)),
+                TimeUnit.SECONDS.toMillis(Long.getLong("server.resumeGraceSeconds", 30)));
+
+        // Log records are written by one thread in batches, see README.md for the settings
+        auditLog = new AuditLog(Integer.getInteger("server.auditQueue", 8192),
+                Long.getLong("server.auditFlushMillis", 0), Boolean.getBoolean("server.auditSync"));
+        stats.logWriter(auditLog);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                auditLog.close();
+            } catch (InterruptedException e) {
+                ServerLog.error("Log records may have been lost on shutdown");
+            }
+            try {
+                ServerLog.close();
+            } catch (InterruptedException e) {
+                // The console output is lost, there is nowhere left to report it
+            }
+        }));
 
+        // Rebuild the active devices and write them back to edge-device-log.txt every -Dserver.compactInterval seconds
         try {
-            SOCKET = new ServerSocket(PORT);
-            System.out.println("SERVER LOG: Server is running on port " + PORT);
+            deviceRegistry = DeviceRegistry.open(Path.of("edge-device-log.txt"), Path.of("edge-device-journal.txt"),
+                    auditLog);
+        } catch (IOException e) {
+            ServerLog.error("Failed to restore active edge devices: {}", e.getMessage());
+            return;
+        }
+        long compactInterval = Long.getLong("server.compactInterval", 10);
+        ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "edge-device-log-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(() -> {
+            try {
+                deviceRegistry.compact();
+            } catch (IOException e) {
+                ServerLog.error("Failed to write edge-device-log.txt: {}", e.getMessage());
+            }
+        }, compactInterval, compactInterval, TimeUnit.SECONDS);
+
+        // Data files are stored in the -Dserver.storage format, existing text files are converted in the background
+        try {
+            storage = SampleFile.format(System.getProperty("server.storage", "text"));
+        } catch (IllegalArgumentException e) {
+            ServerLog.error("Storage format {} is not available, using text", System.getProperty("server.storage"));
+            storage = SampleFile.Format.TEXT;
+        }
+        if (storage != SampleFile.Format.TEXT) {
+            Thread converter = new Thread(Server::convertStoredFiles, "data-file-converter");
+            converter.setDaemon(true);
+            converter.start();
+        }
+
+        // STATS is answered for the accounts in -Dserver.admins, the same statistics are on the platform MBean server
+        admins = Set.copyOf(Arrays.asList(System.getProperty("server.admins", "").trim().split("\\s*,\\s*")));
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(stats,
+                    new ObjectName("ClientServerDemo:type=ServerStats"));
+        } catch (JMException e) {
+            ServerLog.error("Failed to register the statistics MBean: {}", e.getMessage());
+        }
+
+        // AGG scans files on -Dserver.aggregateThreads threads, -Dserver.aggregateQueries queries at a time
+        aggregates = new AggregateQuery(fileLocks, Integer.getInteger("server.aggregateThreads",
+                Math.max(1, Runtime.getRuntime().availableProcessors() / 2)),
+                Integer.getInteger("server.aggregateQueries", 1));
+
+        // Requests sent with an ID run on -Dserver.pipelineWorkers threads, -Dserver.pipelineDepth per connection
+        pipelineWorkers = Executors.newFixedThreadPool(Integer.getInteger("server.pipelineWorkers",
+                Runtime.getRuntime().availableProcessors()));
+        pipelineDepth = Integer.getInteger("server.pipelineDepth", 64);
+
+        // A delivery of presence events blocks while its subscriber is slow to read, so each one gets its own thread
+        presenceWorkers = virtualThreadExecutor();
+        if (presenceWorkers == null)
+            presenceWorkers = Executors.newCachedThreadPool();
+
+        // Connection engine, selected with -Dserver.engine=thread|virtual|selector (see README.md)
+        String engine = System.getProperty("server.engine", "thread");
+        try {
+            if (engine.equals("selector")) {
+                int workers = Integer.getInteger("server.workers", Runtime.getRuntime().availableProcessors());
+                SelectorEngine selectorEngine = new SelectorEngine(PORT, workers,
+                        Integer.getInteger("server.readTimeoutMillis", 10000));
+                ServerLog.info("Server is running on port {} (selector engine, {} workers)", PORT, workers);
+                selectorEngine.run();
+                return;
+            }
+
+            Executor executor = engine.equals("virtual") ? virtualThreadExecutor() : null;
+            if (executor == null) {
+                if (!engine.equals("thread"))
+                    ServerLog.error("Engine {} is not available, using thread engine", engine);
+                engine = "thread";
+                executor = command -> new Thread(command).start();
+            }
+
+            // Accepted through a channel, so DWN can hand the socket to FileChannel.transferTo
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(PORT));
+            SOCKET = serverChannel.socket();
+            ServerLog.info("Server is running on port {} ({} engine)", PORT, engine);
 
             while (true) {
-                Socket connection = SOCKET.accept();
-                new ServerThread(connection).start();
+                Socket connection = serverChannel.accept().socket();
+                executor.execute(new ServerThread(connection));
+            }
+        } catch (IOException e) {
+            ServerLog.error("Server stopped: {}", e);
+        }
+    }
+
+    /**
+     * Convert the stored text data files (username/username-fileID.txt) to the storage format, one file at a time
+     * under its write lock.
+     */
+    private static void convertStoredFiles() {
+        try (DirectoryStream<Path> directories = Files.newDirectoryStream(Path.of(""), Files::isDirectory)) {
+            for (Path directory : directories) {
+                String username = directory.getFileName().toString();
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, username + "-*.txt")) {
+                    for (Path file : files) {
+                        String name = file.getFileName().toString();
+                        String fileID = name.substring(username.length() + 1, name.length() - ".txt".length());
+                        if (fileID.matches("\\d+"))
+                            convertStoredFile(username, fileID, file);
+                    }
+                }
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            ServerLog.error("Failed to convert stored data files: {}", e.getMessage());
+        }
+    }
+
+    @SuppressWarnings("try")
+    private static void convertStoredFile(String username, String fileID, Path file) {
+        try (FileLocks.Held held = fileLocks.write(username, fileID)) {
+            if (SampleFile.format(file) != SampleFile.Format.TEXT)
+                return;
+            long bytes = Files.size(file);
+            DataSummary summary = SampleFile.convert(file, file, storage);
+            if (!summary.valid)
+                return;
+            summary.save(file, Files.size(file));
+            ServerLog.info("Converted {} to {} ({} to {} bytes)", file, storage, bytes, Files.size(file));
+        } catch (NoSuchFileException e) {
+            // Deleted since it was listed
+        } catch (IOException e) {
+            ServerLog.error("Failed to convert {}: {}", file, e.getMessage());
+        }
+    }
+
+    // Virtual threads are only available from Java 21, so look the factory up at runtime
+    private static Executor virtualThreadExecutor() {
+        try {
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
         }
     }
 
@@ -0,0 +1,236 @@
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Leveled, asynchronous server log on the console.
+ *
+ * A log call only stores its message template and arguments in a preallocated slot of a ring buffer; one appender
+ * thread formats the events ("{}" in the template is replaced by the next argument), and writes everything that
+ * queued up to System.out at once. Request threads therefore never build the line nor wait for the console, and
+ * they claim slots with a compare-and-set, not a lock. The level is fixed at startup (-Dserver.logLevel), so a
+ * call below it is a constant check the JIT removes along with the call. When the buffer is full the event is
+ * dropped rather than blocking the request, and the number of dropped events is logged once there is room again.
+ */
+final class ServerLog {
+    static final int ERROR = 0;
+    static final int INFO = 1;
+    static final int DEBUG = 2;
+
+    private static final int LEVEL = level(System.getProperty("server.logLevel", "debug"));
+    private static final int CAPACITY = powerOfTwo(Integer.getInteger("server.logBuffer", 8192));
+    private static final int MASK = CAPACITY - 1;
+    private static final int MAX_ARGUMENTS = 4;
+    private static final int BATCH_CHARS = 64 * 1024; // Written even if more events are waiting
+
+    // Slot i holds the events with sequence numbers i, i + CAPACITY, i + 2 * CAPACITY, ...
+    private static final int[] levels = new int[CAPACITY];
+    private static final String[] messages = new String[CAPACITY];
+    private static final Object[][] arguments = new Object[CAPACITY][MAX_ARGUMENTS];
+    private static final AtomicLongArray published = new AtomicLongArray(CAPACITY); // Sequence stored in each slot
+
+    private static final AtomicLong claimed = new AtomicLong(); // Next sequence number to claim
+    private static final AtomicLong consumed = new AtomicLong(); // Every event before it is formatted
+    private static final LongAdder dropped = new LongAdder();
+    private static volatile boolean idle = false; // The appender is parked, or about to park
+    private static volatile boolean stopping = false;
+    private static final Thread appender;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++)
+            published.set(i, -1);
+        appender = new Thread(ServerLog::append, "server-log-appender");
+        appender.setDaemon(true);
+        appender.start();
+    }
+
+    private ServerLog() {
+    }
+
+    // For the callers that have to build an argument first
+    static boolean enabled(int level) {
+        return level <= LEVEL;
+    }
+
+    static void error(String message) {
+        log(ERROR, message, null, null, null, null);
+    }
+
+    static void error(String message, Object a) {
+        log(ERROR, message, a, null, null, null);
+    }
+
+    static void error(String message, Object a, Object b) {
+        log(ERROR, message, a, b, null, null);
+    }
+
+    static void error(String message, Object a, Object b, Object c) {
+        log(ERROR, message, a, b, c, null);
+    }
+
+    static void error(String message, Object a, Object b, Object c, Object d) {
+        log(ERROR, message, a, b, c, d);
+    }
+
+    static void info(String message) {
+        if (LEVEL >= INFO)
+            log(INFO, message, null, null, null, null);
+    }
+
+    static void info(String message, Object a) {
+        if (LEVEL >= INFO)
+            log(INFO, message, a, null, null, null);
+    }
+
+    static void info(String message, Object a, Object b) {
+        if (LEVEL >= INFO)
+            log(INFO, message, a, b, null, null);
+    }
+
+    static void info(String message, Object a, Object b, Object c) {
+        if (LEVEL >= INFO)
+            log(INFO, message, a, b, c, null);
+    }
+
+    static void info(String message, Object a, Object b, Object c, Object d) {
+        if (LEVEL >= INFO)
+            log(INFO, message, a, b, c, d);
+    }
+
+    static void debug(String message) {
+        if (LEVEL >= DEBUG)
+            log(DEBUG, message, null, null, null, null);
+    }
+
+    static void debug(String message, Object a) {
+        if (LEVEL >= DEBUG)
+            log(DEBUG, message, a, null, null, null);
+    }
+
+    static void debug(String message, Object a, Object b) {
+        if (LEVEL >= DEBUG)
+            log(DEBUG, message, a, b, null, null);
+    }
+
+    static void debug(String message, Object a, Object b, Object c) {
+        if (LEVEL >= DEBUG)
+            log(DEBUG, message, a, b, c, null);
+    }
+
+    static void debug(String message, Object a, Object b, Object c, Object d) {
+        if (LEVEL >= DEBUG)
+            log(DEBUG, message, a, b, c, d);
+    }
+
+    /**
+     * Write every event logged so far and stop the appender. Events logged afterwards are not written.
+     */
+    static void close() throws InterruptedException {
+        stopping = true;
+        LockSupport.unpark(appender);
+        appender.join();
+    }
+
+    private static void log(int level, String message, Object a, Object b, Object c, Object d) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed.get() >= CAPACITY) {
+                dropped.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        int slot = (int) sequence & MASK;
+        levels[slot] = level;
+        messages[slot] = message;
+        Object[] args = arguments[slot];
+        args[0] = a;
+        args[1] = b;
+        args[2] = c;
+        args[3] = d;
+        published.set(slot, sequence); // Makes the writes above visible to the appender
+        if (idle)
+            LockSupport.unpark(appender);
+    }
+
+    private static void append() {
+        StringBuilder text = new StringBuilder();
+        long next = 0;
+        while (true) {
+            int slot = (int) next & MASK;
+            if (published.get(slot) == next) {
+                text.append(levels[slot] == ERROR ? "SERVER ERROR: " : "SERVER LOG: ");
+                format(text, messages[slot], arguments[slot]);
+                text.append(System.lineSeparator());
+                messages[slot] = null;
+                Arrays.fill(arguments[slot], null);
+                consumed.lazySet(++next);
+                if (text.length() >= BATCH_CHARS)
+                    write(text);
+                continue;
+            }
+
+            // Everything published is formatted, write it before waiting for more
+            if (text.length() > 0) {
+                write(text);
+                continue;
+            }
+            long lost = dropped.sumThenReset();
+            if (lost > 0) {
+                text.append("SERVER ERROR: ").append(lost).append(" log events dropped, the log buffer was full")
+                        .append(System.lineSeparator());
+                continue;
+            }
+            if (stopping && next == claimed.get())
+                return;
+
+            idle = true;
+            if (published.get(slot) != next && !stopping)
+                LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+            idle = false;
+        }
+    }
+
+    private static void format(StringBuilder text, String message, Object[] args) {
+        int from = 0;
+        int argument = 0;
+        int at;
+        while (argument < MAX_ARGUMENTS && (at = message.indexOf("{}", from)) >= 0) {
+            text.append(message, from, at).append(args[argument++]);
+            from = at + 2;
+        }
+        text.append(message, from, message.length());
+    }
+
+    // System.out is looked up for every batch, so redirecting it later still takes effect
+    private static void write(StringBuilder text) {
+        byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+        PrintStream out = System.out;
+        out.write(bytes, 0, bytes.length);
+        out.flush();
+        text.setLength(0);
+    }
+
+    // The smallest power of two that is at least n
+    private static int powerOfTwo(int n) {
+        return n <= 2 ? 2 : Integer.highestOneBit(n - 1) << 1;
+    }
+
+    private static int level(String name) {
+        switch (name.toLowerCase(Locale.ROOT)) {
+            case "error":
+                return ERROR;
+            case "info":
+                return INFO;
+            default:
+                return DEBUG;
+        }
+    }
+}
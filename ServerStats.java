@@ -0,0 +1,204 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of the running server, reported by the STATS command and over JMX.
+ *
+ * Everything a request thread updates is a LongAdder or a {@link LatencyHistogram}, so recording never takes a lock,
+ * and the counters do not make threads on different cores contend. Commands and file handler operations are looked
+ * up by name in a concurrent map; only the names the server itself passes in are recorded, so a client can not grow
+ * the map.
+ */
+class ServerStats implements ServerStatsMXBean {
+    private static final double[] PERCENTILES = {50, 99, 99.9};
+
+    private static class Timer {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+    }
+
+    private final long started = System.nanoTime();
+    private final Map<String, Timer> commands = new ConcurrentHashMap<>();
+    private final Map<String, Timer> fileHandler = new ConcurrentHashMap<>();
+
+    private final LongAdder activeSessions = new LongAdder();
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder failedLogins = new LongAdder();
+    private final LongAdder lockouts = new LongAdder();
+    private final LongAdder bytesUploaded = new LongAdder();
+    private final LongAdder resumedSessions = new LongAdder();
+
+    private volatile AuditLog logWriter; // Set once the server has started it
+    private volatile LockoutManager lockoutManager; // Set once the server has started it
+
+    void logWriter(AuditLog logWriter) {
+        this.logWriter = logWriter;
+    }
+
+    void lockoutManager(LockoutManager lockoutManager) {
+        this.lockoutManager = lockoutManager;
+    }
+
+    /**
+     * Record a command that was dispatched at startNanos (System.nanoTime()) and has just been answered.
+     */
+    void command(String command, long startNanos, boolean failed) {
+        record(commands, command, startNanos, failed);
+    }
+
+    /**
+     * Record a SynchronizedFileHandler operation that started at startNanos (System.nanoTime()).
+     */
+    void fileHandler(String operation, long startNanos) {
+        record(fileHandler, operation, startNanos, false);
+    }
+
+    void sessionOpened() {
+        activeSessions.increment();
+        connections.increment();
+    }
+
+    void sessionClosed() {
+        activeSessions.decrement();
+    }
+
+    void failedLogin() {
+        failedLogins.increment();
+    }
+
+    void lockout() {
+        lockouts.increment();
+    }
+
+    void uploaded(long bytes) {
+        bytesUploaded.add(bytes);
+    }
+
+    void resumed() {
+        resumedSessions.increment();
+    }
+
+    private static void record(Map<String, Timer> timers, String name, long startNanos, boolean failed) {
+        long nanos = System.nanoTime() - startNanos;
+        Timer timer = timers.get(name);
+        if (timer == null)
+            timer = timers.computeIfAbsent(name, key -> new Timer());
+        timer.latency.record(nanos);
+        if (failed)
+            timer.errors.increment();
+    }
+
+    @Override
+    public long getUptimeSeconds() {
+        return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started);
+    }
+
+    @Override
+    public long getActiveSessions() {
+        return activeSessions.sum();
+    }
+
+    @Override
+    public long getConnections() {
+        return connections.sum();
+    }
+
+    @Override
+    public long getFailedLogins() {
+        return failedLogins.sum();
+    }
+
+    @Override
+    public long getLockouts() {
+        return lockouts.sum();
+    }
+
+    @Override
+    public Map<String, Long> getLockedAccounts() {
+        LockoutManager manager = lockoutManager;
+        return manager == null ? Map.of() : new TreeMap<>(manager.lockedAccounts());
+    }
+
+    @Override
+    public long getBytesUploaded() {
+        return bytesUploaded.sum();
+    }
+
+    @Override
+    public long getResumedSessions() {
+        return resumedSessions.sum();
+    }
+
+    @Override
+    public long getLogWriterWaits() {
+        AuditLog log = logWriter;
+        return log == null ? 0 : log.waits();
+    }
+
+    @Override
+    public double getLogWriterWaitMillis() {
+        AuditLog log = logWriter;
+        return log == null ? 0 : log.waitNanos() / 1e6;
+    }
+
+    @Override
+    public int getLogWriterQueued() {
+        AuditLog log = logWriter;
+        return log == null ? 0 : log.queued();
+    }
+
+    @Override
+    public CommandStats[] getCommands() {
+        return snapshot(commands);
+    }
+
+    @Override
+    public CommandStats[] getFileHandler() {
+        return snapshot(fileHandler);
+    }
+
+    @Override
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("Uptime %d s, %d active sessions (%d connections, %d resumed), %d failed " +
+                        "logins, %d lockouts, %d bytes uploaded%n", getUptimeSeconds(), getActiveSessions(),
+                getConnections(), getResumedSessions(), getFailedLogins(), getLockouts(), getBytesUploaded()));
+        StringBuilder locked = new StringBuilder();
+        getLockedAccounts().forEach((username, millis) -> locked.append(locked.length() == 0 ? "" : ", ")
+                .append(username).append(" (").append((millis + 999) / 1000).append(" s)"));
+        report.append("Locked accounts: ").append(locked.length() == 0 ? "none" : locked).append(String.format("%n"));
+        report.append(String.format("Log writer: %d waits for a full queue (%.3f ms), %d records queued%n",
+                getLogWriterWaits(), getLogWriterWaitMillis(), getLogWriterQueued()));
+        table(report, "Command", getCommands());
+        table(report, "File handler", getFileHandler());
+        return report.toString();
+    }
+
+    private static void table(StringBuilder report, String title, CommandStats[] rows) {
+        report.append(String.format("%-24s %9s %7s %9s %9s %9s %9s %9s %9s%n", title, "count", "errors", "rate/s",
+                "mean ms", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+        for (CommandStats row : rows)
+            report.append(String.format("%-24s %9d %7d %9.2f %9.3f %9.3f %9.3f %9.3f %9.3f%n", row.getName(),
+                    row.getCount(), row.getErrors(), row.getRatePerSecond(), row.getMeanMillis(), row.getP50Millis(),
+                    row.getP99Millis(), row.getP999Millis(), row.getMaxMillis()));
+    }
+
+    private CommandStats[] snapshot(Map<String, Timer> timers) {
+        double seconds = Math.max(1e-9, (System.nanoTime() - started) / 1e9);
+        List<CommandStats> result = new ArrayList<>();
+        timers.entrySet().stream().sorted(Map.Entry.comparingByKey()).forEach(entry -> {
+            LatencyHistogram latency = entry.getValue().latency;
+            long count = latency.count();
+            double[] percentiles = latency.percentiles(PERCENTILES);
+            result.add(new CommandStats(entry.getKey(), count, entry.getValue().errors.sum(), count / seconds,
+                    count == 0 ? 0 : latency.totalNanos() / 1e6 / count, percentiles[0] / 1e6, percentiles[1] / 1e6,
+                    percentiles[2] / 1e6, latency.maxNanos() / 1e6));
+        });
+        return result.toArray(new CommandStats[0]);
+    }
+}
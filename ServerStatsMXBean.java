@@ -0,0 +1,106 @@
+import java.util.Map;
+
+/**
+ * Management interface of the server statistics, registered as ClientServerDemo:type=ServerStats. The attributes are
+ * read from the live counters every time, so a JMX console that polls them sees the server as it runs.
+ */
+public interface ServerStatsMXBean {
+
+    long getUptimeSeconds();
+
+    // Connections that are open now, logged in or not
+    long getActiveSessions();
+
+    long getConnections();
+
+    // Wrong passwords, and logins refused because the account is blocked
+    long getFailedLogins();
+
+    long getLockouts();
+
+    // Accounts that are blocked now, with the milliseconds until each is unblocked
+    Map<String, Long> getLockedAccounts();
+
+    long getBytesUploaded();
+
+    // Sessions resumed with a token instead of a login
+    long getResumedSessions();
+
+    // How often and for how long a request thread waited for room in the full log writer queue
+    long getLogWriterWaits();
+
+    double getLogWriterWaitMillis();
+
+    int getLogWriterQueued();
+
+    CommandStats[] getCommands();
+
+    CommandStats[] getFileHandler();
+
+    // The same table as the STATS command
+    String report();
+
+    /**
+     * Counters and latency percentiles of one command or SynchronizedFileHandler operation.
+     */
+    final class CommandStats {
+        private final String name;
+        private final long count;
+        private final long errors;
+        private final double ratePerSecond;
+        private final double meanMillis;
+        private final double p50Millis;
+        private final double p99Millis;
+        private final double p999Millis;
+        private final double maxMillis;
+
+        CommandStats(String name, long count, long errors, double ratePerSecond, double meanMillis, double p50Millis,
+                     double p99Millis, double p999Millis, double maxMillis) {
+            this.name = name;
+            this.count = count;
+            this.errors = errors;
+            this.ratePerSecond = ratePerSecond;
+            this.meanMillis = meanMillis;
+            this.p50Millis = p50Millis;
+            this.p99Millis = p99Millis;
+            this.p999Millis = p999Millis;
+            this.maxMillis = maxMillis;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public double getRatePerSecond() {
+            return ratePerSecond;
+        }
+
+        public double getMeanMillis() {
+            return meanMillis;
+        }
+
+        public double getP50Millis() {
+            return p50Millis;
+        }
+
+        public double getP99Millis() {
+            return p99Millis;
+        }
+
+        public double getP999Millis() {
+            return p999Millis;
+        }
+
+        public double getMaxMillis() {
+            return maxMillis;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Session tokens, so a device that lost its connection can resume its session on a new one without logging in again.
+ *
+ * A token is issued on every login and resume and can be used once. It stays valid while its session is connected
+ * and for the token lifetime after the session ends, unless the session ended with OUT. The session that logged a
+ * user in last owns the user's active device entry: when it ends without OUT the entry is only removed after the
+ * grace period, and only if no later session of the user took it over in the meantime. A resume within the grace
+ * period therefore keeps the entry as it is. Like LockoutManager, expiries run on one scheduler thread.
+ *
+ * @param <S> the session type
+ */
+class SessionTokens<S> {
+    static class Token<S> {
+        final String username;
+        final S session;
+
+        Token(String username, S session) {
+            this.username = username;
+            this.session = session;
+        }
+    }
+
+    private final long lifetimeMillis;
+    private final long graceMillis;
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, Token<S>> tokens = new ConcurrentHashMap<>();
+    private final Map<String, S> owners = new ConcurrentHashMap<>(); // Username to the session owning its device entry
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * @param lifetimeMillis how long a token can be used after its session ended
+     * @param graceMillis    how long the device entry of a session that ended without OUT is kept
+     */
+    SessionTokens(long lifetimeMillis, long graceMillis) {
+        this.lifetimeMillis = lifetimeMillis;
+        this.graceMillis = graceMillis;
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-token-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return a new token that resumes the session of the user
+     */
+    String issue(String username, S session) {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        tokens.put(token, new Token<>(username, session));
+        return token;
+    }
+
+    /**
+     * Use up a token.
+     *
+     * @return the user and the session the token was issued to, or null if the token is unknown or expired
+     */
+    Token<S> resume(String token) {
+        return token == null ? null : tokens.remove(token);
+    }
+
+    /**
+     * Make the session the owner of the user's device entry, so the end of an earlier session of the user no longer
+     * removes it.
+     */
+    void loggedIn(String username, S session) {
+        owners.put(username, session);
+    }
+
+    /**
+     * A logged in session ended. After OUT its token is revoked and its device entry removed at once; otherwise the
+     * token expires after the token lifetime and the entry is removed after the grace period.
+     *
+     * @param removeDevice removes the user's device entry, only run if the session still owns it
+     */
+    void ended(String token, String username, S session, boolean loggedOut, Runnable removeDevice) {
+        if (loggedOut) {
+            if (token != null)
+                tokens.remove(token);
+            release(username, session, removeDevice);
+            return;
+        }
+
+        if (token != null) {
+            Token<S> issued = tokens.get(token);
+            if (issued != null)
+                scheduler.schedule(() -> tokens.remove(token, issued), lifetimeMillis, TimeUnit.MILLISECONDS);
+        }
+        if (graceMillis <= 0)
+            release(username, session, removeDevice);
+        else
+            scheduler.schedule(() -> release(username, session, removeDevice), graceMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // The entry is removed under the map's lock of the username, so a session taking it over waits until it is gone
+    private void release(String username, S session, Runnable removeDevice) {
+        owners.computeIfPresent(username, (key, owner) -> {
+            if (owner != session)
+                return owner;
+            removeDevice.run();
+            return null;
+        });
+    }
+}
@@ -0,0 +1,403 @@
+import java.io.*;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * UVF file transfer over UDP with a sliding window and selective repeat.
+ *
+ * Every transfer has an ID chosen by its sender, so one socket can send and receive many files at the same time. The
+ * sender numbers its packets. Packet 0 carries "senderName filename", the file follows from packet 1 and its last
+ * packet has the FIN flag; all other packets are full, so the receiver writes each one straight to its position in
+ * the file. The receiver acknowledges every packet with the next packet it expects (cumulative) and a
+ * bitmap of the packets it holds beyond that (selective), and echoes the timestamp of the packet it acknowledges, so
+ * the sender measures the round-trip time even for retransmissions. Only missing packets are sent again: when
+ * DUP_THRESHOLD packets sent after one of them have arrived, or when the retransmission timer (RFC 6298) expires.
+ *
+ * Congestion control is NewReno-like: the window grows by one packet per ACK in slow start and by one packet per round
+ * trip after it, and drops to one packet on a timeout. Like TCP Veno, a loss only halves the window (once per window,
+ * without growing again until the losses are repaired) if the round-trip time shows a queue of at least
+ * QUEUE_THRESHOLD packets at the bottleneck. A loss without a queue is taken as random loss on the link, which backing
+ * off would only leave unused.
+ * <pre>
+ * DATA uint8 type = 1, uint8 flags (1 = FIN), int32 transfer ID, int32 seq, int64 timestamp,
+ *      payload of at most MAX_PAYLOAD bytes
+ * ACK  uint8 type = 2, uint8 unused, int32 transfer ID, int32 next expected seq, int64 echoed timestamp,
+ *      bitmap where bit i (lowest bit first) is set if packet expected + 1 + i arrived, without trailing zero bytes
+ * </pre>
+ */
+class UVFProtocol {
+    // Header and payload fit the 1472 bytes of an IPv4 datagram on Ethernet (1452 for IPv6) without fragmentation
+    static final int MAX_PAYLOAD = 1400;
+    private static final int DATA_HEADER = 18;
+    static final int MAX_DATAGRAM = DATA_HEADER + MAX_PAYLOAD;
+
+    // Packets in flight per transfer, which is also how many the receiver buffers out of order
+    static final int MAX_WINDOW = Integer.getInteger("client.uvfWindow", 1024);
+
+    private static final byte DATA = 1;
+    private static final byte ACK = 2;
+    private static final int FIN = 1;
+    private static final int ACK_HEADER = 18;
+    private static final int DUP_THRESHOLD = 3;
+    private static final int QUEUE_DELAY_DIVISOR = 4;
+
+    private static final long INITIAL_RTO = TimeUnit.SECONDS.toNanos(1);
+    private static final long MIN_RTO = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final long MAX_RTO = TimeUnit.SECONDS.toNanos(60);
+    private static final int MAX_TIMEOUTS = 5; // Timeouts in a row before the receiver is considered gone
+
+    static boolean isAck(DatagramPacket packet) {
+        return packet.getLength() >= ACK_HEADER && packet.getData()[packet.getOffset()] == ACK;
+    }
+
+    static boolean isData(DatagramPacket packet) {
+        return packet.getLength() >= DATA_HEADER && packet.getData()[packet.getOffset()] == DATA;
+    }
+
+    static int transferID(DatagramPacket packet) {
+        return ByteBuffer.wrap(packet.getData(), packet.getOffset() + 2, 4).getInt();
+    }
+
+    /**
+     * Where a Receiver writes a transfer. Blocks of the file may be written in any order.
+     */
+    interface Sink {
+        void open(String header) throws IOException;
+
+        void write(long position, byte[] data, int offset, int length) throws IOException;
+
+        void close() throws IOException;
+
+        // The transfer failed or was abandoned by its sender
+        void abort();
+    }
+
+    /**
+     * Sends one file. send() runs the transfer on the calling thread, the thread receiving on the socket passes the
+     * ACKs to onAck().
+     */
+    static class Sender {
+        private static class Slot {
+            final byte[] datagram = new byte[MAX_DATAGRAM];
+            int length;
+            long sendIndex; // Transmission number of the latest copy sent
+            boolean sacked;
+            boolean lost;
+        }
+
+        private final DatagramSocket socket;
+        private final InetAddress address;
+        private final int port;
+        private final int transferID;
+        private final byte[] header;
+        private final InputStream input;
+
+        private final Slot[] window = new Slot[MAX_WINDOW];
+        private int base = 0; // Oldest packet not acknowledged
+        private int next = 0; // Next packet never sent
+        private int last = -1; // The FIN packet, once the end of the file is read
+        private int inFlight = 0; // Sent and neither acknowledged nor considered lost
+        private int lostCount = 0;
+        private long transmissions = 0;
+        private long highestDelivered = -1; // Latest transmission known to have arrived
+
+        private double cwnd = 2;
+        private double ssthresh = MAX_WINDOW;
+        private int recoveryEnd = 0; // Losses before this packet belong to a window that was already halved
+
+        private long srtt = -1;
+        private long rttvar;
+        private long minRtt = Long.MAX_VALUE;
+        private long latestRtt;
+        private long rto = INITIAL_RTO;
+        private long deadline;
+        private int timeouts = 0;
+
+        Sender(DatagramSocket socket, InetAddress address, int port, int transferID, String header, InputStream input) {
+            this.socket = socket;
+            this.address = address;
+            this.port = port;
+            this.transferID = transferID;
+            this.header = header.getBytes(StandardCharsets.UTF_8);
+            this.input = input;
+        }
+
+        /**
+         * Send the whole file and wait until the receiver has acknowledged all of it.
+         *
+         * @return false if the receiver stopped answering
+         */
+        synchronized boolean send() throws IOException, InterruptedException {
+            deadline = System.nanoTime() + rto;
+            while (last < 0 || base <= last) {
+                // Missing packets go first, then new ones while both the congestion and the receive window allow
+                for (int seq = base; lostCount > 0 && inFlight < cwnd && seq < next; seq++) {
+                    if (slot(seq).lost)
+                        transmit(slot(seq));
+                }
+                while (inFlight < cwnd && next - base < MAX_WINDOW && (last < 0 || next <= last)) {
+                    fill(next);
+                    transmit(slot(next));
+                    next++;
+                }
+
+                long now = System.nanoTime();
+                if (now - deadline >= 0) {
+                    if (++timeouts > MAX_TIMEOUTS)
+                        return false;
+                    timeout(now);
+                } else
+                    TimeUnit.NANOSECONDS.timedWait(this, deadline - now);
+            }
+            return true;
+        }
+
+        synchronized void onAck(DatagramPacket packet) {
+            ByteBuffer buffer = ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength());
+            buffer.position(6);
+            int cumulative = buffer.getInt();
+            long echoed = buffer.getLong();
+
+            long now = System.nanoTime();
+            sampleRtt(now - echoed);
+
+            int acked = 0;
+            for (; base < Math.min(cumulative, next); base++) {
+                if (!slot(base).sacked) {
+                    delivered(slot(base));
+                    acked++;
+                }
+            }
+            for (int i = 0; buffer.hasRemaining(); i += 8) {
+                int bits = buffer.get() & 0xFF;
+                for (int bit = 0; bits != 0; bit++, bits >>>= 1) {
+                    int seq = cumulative + 1 + i + bit;
+                    if ((bits & 1) == 0 || seq < base || seq >= next || slot(seq).sacked)
+                        continue;
+                    slot(seq).sacked = true;
+                    delivered(slot(seq));
+                    acked++;
+                }
+            }
+            if (acked == 0)
+                return;
+
+            timeouts = 0;
+            for (int i = 0; i < acked && base >= recoveryEnd; i++)
+                cwnd = Math.min(cwnd + (cwnd < ssthresh ? 1 : 1 / cwnd), MAX_WINDOW);
+
+            // A packet is lost once DUP_THRESHOLD packets sent after it have arrived
+            for (int seq = base; seq < next; seq++) {
+                Slot slot = slot(seq);
+                if (slot.sacked || slot.lost || slot.sendIndex + DUP_THRESHOLD > highestDelivered)
+                    continue;
+                slot.lost = true;
+                lostCount++;
+                inFlight--;
+                if (seq >= recoveryEnd) {
+                    // A queue at the bottleneck shows as a round-trip time above the minimum
+                    if (srtt - minRtt >= minRtt / QUEUE_DELAY_DIVISOR) {
+                        ssthresh = Math.max(cwnd / 2, 2);
+                        cwnd = ssthresh;
+                        recoveryEnd = next;
+                    }
+                }
+            }
+
+            deadline = now + rto;
+            notifyAll();
+        }
+
+        // Every packet that is still missing is sent again, starting from a window of one packet
+        private void timeout(long now) {
+            ssthresh = Math.max(cwnd / 2, 2);
+            cwnd = 1;
+            rto = Math.min(rto * 2, MAX_RTO);
+            for (int seq = base; seq < next; seq++) {
+                Slot slot = slot(seq);
+                if (!slot.sacked && !slot.lost) {
+                    slot.lost = true;
+                    lostCount++;
+                    inFlight--;
+                }
+            }
+            recoveryEnd = next;
+            deadline = now + rto;
+        }
+
+        private void sampleRtt(long rtt) {
+            if (rtt <= 0)
+                return;
+            latestRtt = rtt;
+            minRtt = Math.min(minRtt, rtt);
+            if (srtt < 0) {
+                srtt = rtt;
+                rttvar = rtt / 2;
+            } else {
+                rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+                srtt = (7 * srtt + rtt) / 8;
+            }
+            rto = Math.max(MIN_RTO, Math.min(srtt + 4 * rttvar, MAX_RTO));
+        }
+
+        private void delivered(Slot slot) {
+            highestDelivered = Math.max(highestDelivered, slot.sendIndex);
+            if (slot.lost) {
+                slot.lost = false;
+                lostCount--;
+            } else
+                inFlight--;
+        }
+
+        private Slot slot(int seq) {
+            int index = seq % MAX_WINDOW;
+            if (window[index] == null)
+                window[index] = new Slot();
+            return window[index];
+        }
+
+        private void fill(int seq) throws IOException {
+            Slot slot = slot(seq);
+            int length;
+            int flags = 0;
+            if (seq == 0) {
+                length = Math.min(header.length, MAX_PAYLOAD);
+                System.arraycopy(header, 0, slot.datagram, DATA_HEADER, length);
+            } else {
+                length = input.readNBytes(slot.datagram, DATA_HEADER, MAX_PAYLOAD);
+                if (length < MAX_PAYLOAD) {
+                    flags = FIN;
+                    last = seq;
+                }
+            }
+            ByteBuffer.wrap(slot.datagram).put(DATA).put((byte) flags).putInt(transferID).putInt(seq);
+            slot.length = DATA_HEADER + length;
+            slot.sacked = false;
+            slot.lost = false;
+        }
+
+        private void transmit(Slot slot) throws IOException {
+            long now = System.nanoTime();
+            ByteBuffer.wrap(slot.datagram).putLong(10, now);
+            socket.send(new DatagramPacket(slot.datagram, slot.length, address, port));
+
+            if (inFlight == 0)
+                deadline = now + rto;
+            if (slot.lost) {
+                slot.lost = false;
+                lostCount--;
+            }
+            slot.sendIndex = transmissions++;
+            inFlight++;
+        }
+    }
+
+    /**
+     * Receives one file. Packets are written to the file as they arrive, only the ones that arrive before packet 0
+     * (which opens the file) are held back.
+     */
+    static class Receiver {
+        private final Sink sink;
+        private final TreeSet<Integer> early = new TreeSet<>(); // Received packets after the next expected one
+        private final TreeMap<Integer, byte[]> beforeOpen = new TreeMap<>();
+        private int expected = 0;
+        private int last = -1; // The FIN packet, once it arrived
+        private boolean opened = false;
+        private boolean finished = false;
+        private boolean failed = false;
+        private long lastPacket = System.nanoTime();
+
+        Receiver(Sink sink) {
+            this.sink = sink;
+        }
+
+        boolean finished() {
+            return finished;
+        }
+
+        /**
+         * @return nanoseconds since the last packet of the transfer arrived
+         */
+        long idle() {
+            return System.nanoTime() - lastPacket;
+        }
+
+        // Give up a transfer whose sender went away
+        void abandon() {
+            if (!finished && !failed) {
+                failed = true;
+                sink.abort();
+            }
+        }
+
+        /**
+         * @return the ACK to send back, or null once the transfer failed
+         */
+        byte[] onData(DatagramPacket packet) {
+            ByteBuffer buffer = ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength());
+            buffer.get();
+            int flags = buffer.get();
+            int transferID = buffer.getInt();
+            int seq = buffer.getInt();
+            long timestamp = buffer.getLong();
+            lastPacket = System.nanoTime();
+
+            if (!finished && !failed && seq >= expected && seq < expected + MAX_WINDOW && !early.contains(seq)) {
+                try {
+                    if ((flags & FIN) != 0)
+                        last = seq;
+                    if (seq == 0) {
+                        sink.open(new String(packet.getData(), buffer.position(), buffer.remaining(),
+                                StandardCharsets.UTF_8));
+                        opened = true;
+                        for (Map.Entry<Integer, byte[]> entry : beforeOpen.entrySet())
+                            sink.write(position(entry.getKey()), entry.getValue(), 0, entry.getValue().length);
+                        beforeOpen.clear();
+                    } else if (opened)
+                        sink.write(position(seq), packet.getData(), buffer.position(), buffer.remaining());
+                    else
+                        beforeOpen.put(seq, Arrays.copyOfRange(packet.getData(), buffer.position(), buffer.limit()));
+
+                    if (seq == expected) {
+                        expected++;
+                        while (early.remove(expected))
+                            expected++;
+                    } else
+                        early.add(seq);
+
+                    if (last >= 0 && expected > last) {
+                        finished = true;
+                        sink.close();
+                    }
+                } catch (IOException e) {
+                    failed = true;
+                    sink.abort();
+                }
+            }
+            return failed ? null : ack(transferID, timestamp);
+        }
+
+        private static long position(int seq) {
+            return (long) (seq - 1) * MAX_PAYLOAD;
+        }
+
+        private byte[] ack(int transferID, long timestamp) {
+            int bytes = early.isEmpty() ? 0 : (early.last() - expected - 1) / 8 + 1;
+            byte[] ack = new byte[ACK_HEADER + bytes];
+            ByteBuffer.wrap(ack).put(ACK).put((byte) 0).putInt(transferID).putInt(expected).putLong(timestamp);
+            for (int seq : early) {
+                int bit = seq - expected - 1;
+                ack[ACK_HEADER + bit / 8] |= 1 << (bit % 8);
+            }
+            return ack;
+        }
+    }
+}
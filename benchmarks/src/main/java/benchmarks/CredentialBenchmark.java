@@ -0,0 +1,76 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Login checks against a credentials.txt of the given number of accounts: a correct password, a wrong password and an
+ * unknown username, plus loading the whole file as the server does when it changes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CredentialBenchmark {
+    private static final int LOOKUPS = 1024; // Accounts looked up in turn, in random order
+
+    @Param({"1000", "100000", "1000000"})
+    public int accounts;
+
+    private Object session;
+    private String[] usernames;
+    private String[] passwords;
+    private int next = 0;
+
+    @Setup
+    public void setUp() throws Throwable {
+        ServerHarness.prepare();
+        session = ServerHarness.session();
+
+        try (BufferedWriter writer = Files.newBufferedWriter(Path.of("credentials.txt"))) {
+            for (int i = 0; i < accounts; i++)
+                writer.write("user" + i + " password" + i + "\n");
+        }
+        ServerHarness.RELOAD_CREDENTIALS.invokeExact();
+
+        SplittableRandom random = new SplittableRandom(42);
+        usernames = new String[LOOKUPS];
+        passwords = new String[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            int account = random.nextInt(accounts);
+            usernames[i] = "user" + account;
+            passwords[i] = "password" + account;
+        }
+    }
+
+    @Benchmark
+    public boolean correctPassword() throws Throwable {
+        int i = next++ & (LOOKUPS - 1);
+        return (boolean) ServerHarness.CHECK_USERNAME_PASSWORD.invokeExact(session, usernames[i], passwords[i]);
+    }
+
+    @Benchmark
+    public boolean wrongPassword() throws Throwable {
+        int i = next++ & (LOOKUPS - 1);
+        return (boolean) ServerHarness.CHECK_USERNAME_PASSWORD.invokeExact(session, usernames[i], "wrong");
+    }
+
+    @Benchmark
+    public boolean unknownUsername() throws Throwable {
+        int i = next++ & (LOOKUPS - 1);
+        return (boolean) ServerHarness.CHECK_USERNAME_PASSWORD.invokeExact(session, passwords[i], "wrong");
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void reload() throws Throwable {
+        ServerHarness.RELOAD_CREDENTIALS.invokeExact();
+    }
+}
@@ -0,0 +1,84 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * UED and SCS on data files of the given number of samples (random integers from 1 to 9999 as EDG generates them,
+ * always the same ones) in each storage format.
+ *
+ * ued stores a whole file, summary and upload log record included. scs runs one operation on a file stored in setup;
+ * every operation but HISTOGRAM is answered from the .summary file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataFileBenchmark {
+    private static final String USERNAME = "benchmark-data";
+
+    @Param({"1000", "100000", "1000000"})
+    public int samples;
+
+    @Param({"text", "packed", "delta"})
+    public String storage;
+
+    private Object session;
+    private String content;
+
+    @State(Scope.Benchmark)
+    public static class Operation {
+        @Param({"SUM", "AVERAGE", "MIN", "MAX", "MEDIAN", "PERCENTILE 90", "STDDEV", "HISTOGRAM 10"})
+        public String operation;
+
+        String name;
+        String argument;
+
+        @Setup
+        public void setUp() {
+            String[] params = operation.split(" ");
+            name = params[0];
+            argument = params.length > 1 ? params[1] : null;
+        }
+    }
+
+    @Setup
+    public void setUp() throws Throwable {
+        ServerHarness.prepare();
+        ServerHarness.storage(storage);
+        session = ServerHarness.session();
+        ServerHarness.deleteRecursively(Path.of(USERNAME));
+
+        SplittableRandom random = new SplittableRandom(42);
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < samples; i++)
+            builder.append(random.nextInt(1, 10000)).append('\n');
+        content = builder.toString();
+
+        Map<?, ?> response = (Map<?, ?>) ServerHarness.HANDLE_UED.invokeExact(session, USERNAME, "1", content);
+        if (!"100".equals(response.get("status")))
+            throw new IllegalStateException("UED failed: " + response);
+    }
+
+    @TearDown
+    public void tearDown() throws Throwable {
+        ServerHarness.deleteRecursively(Path.of(USERNAME));
+    }
+
+    @Benchmark
+    public Map<?, ?> ued() throws Throwable {
+        return (Map<?, ?>) ServerHarness.HANDLE_UED.invokeExact(session, USERNAME, "2", content);
+    }
+
+    @Benchmark
+    public Map<?, ?> scs(Operation operation) throws Throwable {
+        return (Map<?, ?>) ServerHarness.HANDLE_SCS.invokeExact(session, USERNAME, "1", operation.name,
+                operation.argument);
+    }
+}
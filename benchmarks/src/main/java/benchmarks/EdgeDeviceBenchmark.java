@@ -0,0 +1,71 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * handleEdgeDeviceLog with the given number of active devices. Mode 0 (login) is measured for a device that is
+ * already registered, so the registry keeps its size; mode 1 (logout) is measured together with the login that
+ * registers the device again. Mode 2 lists the devices for AED.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EdgeDeviceBenchmark {
+
+    @Param({"1000", "10000"})
+    public int devices;
+
+    private String[] usernames;
+    private int next = 0;
+
+    @Setup
+    public void setUp() throws Throwable {
+        ServerHarness.prepare();
+        usernames = new String[devices];
+        for (int i = 0; i < devices; i++) {
+            usernames[i] = "device" + i;
+            handleEdgeDeviceLog(0, usernames[i], "127.0.0.1", String.valueOf(10000 + i % 50000));
+        }
+    }
+
+    // Keep the journal of every iteration small, as the server's compaction does
+    @TearDown(Level.Iteration)
+    public void compact() throws Throwable {
+        ServerHarness.compactDeviceRegistry();
+    }
+
+    @TearDown
+    public void tearDown() throws Throwable {
+        for (String username : usernames) {
+            handleEdgeDeviceLog(1, username);
+        }
+        ServerHarness.compactDeviceRegistry();
+    }
+
+    @Benchmark
+    public String login() throws Throwable {
+        String username = usernames[next++ % devices];
+        return handleEdgeDeviceLog(0, username, "127.0.0.1", "9000");
+    }
+
+    @Benchmark
+    public String logoutAndLogin() throws Throwable {
+        String username = usernames[next++ % devices];
+        handleEdgeDeviceLog(1, username);
+        return handleEdgeDeviceLog(0, username, "127.0.0.1", "9000");
+    }
+
+    @Benchmark
+    public String list() throws Throwable {
+        return handleEdgeDeviceLog(2, usernames[0]);
+    }
+
+    private static String handleEdgeDeviceLog(int mode, String... args) throws Throwable {
+        return (String) ServerHarness.HANDLE_EDGE_DEVICE_LOG.invokeExact(mode, args);
+    }
+}
@@ -0,0 +1,132 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing and reading command maps through a MessageChannel, with the original Java serialization ("object") and
+ * the binary protocol. The channel writes into a buffer that it reads back from, so only encoding and decoding are
+ * measured. Every message is a new map with new value strings, as a real request is.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    @Param({"object", "binary"})
+    public String protocol;
+
+    @Param({"SCS_REQUEST", "SCS_RESPONSE", "AED_RESPONSE"})
+    public String message;
+
+    private Object channel;
+    private Map<String, String> template;
+
+    @Setup
+    public void setUp() throws Throwable {
+        Loopback loopback = new Loopback();
+        channel = ServerHarness.channel(protocol, loopback.in, loopback.out);
+
+        switch (message) {
+            case "SCS_REQUEST":
+                template = Map.of("command", "SCS", "fileID", "1", "username", "yoda", "operation", "SUM");
+                break;
+            case "SCS_RESPONSE":
+                template = Map.of("command", "SCS", "status", "100", "information", "SUM of yoda-1.txt: 5031203");
+                break;
+            case "AED_RESPONSE":
+                StringBuilder content = new StringBuilder();
+                for (int i = 0; i < 100; i++)
+                    content.append("Username: device").append(i)
+                            .append(", Active From: 17 October 2026 10:00:00, IP Address: 10.0.0.").append(i)
+                            .append(", UDP Port: ").append(9000 + i).append("\n");
+                template = Map.of("command", "AED", "status", "100", "content", content.toString(),
+                        "information", "Successfully found the list of active devices");
+                break;
+            default:
+                throw new IllegalArgumentException(message);
+        }
+    }
+
+    @Benchmark
+    public Map<?, ?> roundTrip() throws Throwable {
+        Map<String, String> map = copy(template);
+        ServerHarness.CHANNEL_WRITE.invokeExact(channel, map);
+        return (Map<?, ?>) ServerHarness.CHANNEL_READ.invokeExact(channel);
+    }
+
+    private static Map<String, String> copy(Map<String, String> template) {
+        Map<String, String> map = new HashMap<>();
+        for (Map.Entry<String, String> entry : template.entrySet())
+            map.put(entry.getKey(), new String(entry.getValue()));
+        return map;
+    }
+
+    /**
+     * An in-memory pipe for one thread: what is written can be read back, and the buffer starts over once it has been
+     * read completely.
+     */
+    private static class Loopback {
+        private byte[] buffer = new byte[64 * 1024];
+        private int writePosition = 0;
+        private int readPosition = 0;
+
+        final OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                if (writePosition + len > buffer.length)
+                    buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, writePosition + len));
+                System.arraycopy(b, off, buffer, writePosition, len);
+                writePosition += len;
+            }
+        };
+
+        final InputStream in = new InputStream() {
+            @Override
+            public int read() {
+                if (readPosition == writePosition)
+                    return -1;
+                int b = buffer[readPosition++] & 0xFF;
+                rewind();
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (readPosition == writePosition)
+                    return -1;
+                int count = Math.min(len, writePosition - readPosition);
+                System.arraycopy(buffer, readPosition, b, off, count);
+                readPosition += count;
+                rewind();
+                return count;
+            }
+
+            @Override
+            public int available() {
+                return writePosition - readPosition;
+            }
+        };
+
+        private void rewind() {
+            if (readPosition == writePosition) {
+                readPosition = 0;
+                writePosition = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Access to the server internals for the benchmarks.
+ *
+ * The server classes are in the default package, which code in a named package cannot refer to, so they are reached
+ * through method handles. The handles are static final, so the JIT compiles the calls like direct calls.
+ *
+ * The server works on files relative to the working directory (credentials.txt, the log files and one directory per
+ * user), so the benchmarks have to run in a directory of their own. prepare() refuses to start in a directory that
+ * has a credentials.txt the benchmarks did not write.
+ */
+final class ServerHarness {
+    private static final Path MARKER = Path.of(".server-benchmarks");
+
+    static final Class<?> SERVER = load("Server");
+    static final Class<?> SESSION = load("Server$Session");
+    static final Class<?> CREDENTIAL_INDEX = load("Server$CredentialIndex");
+    static final Class<?> FILE_HANDLER = load("Server$SynchronizedFileHandler");
+    static final Class<?> AUDIT_LOG = load("AuditLog");
+    static final Class<?> DEVICE_REGISTRY = load("DeviceRegistry");
+    static final Class<?> MESSAGE_CHANNEL = load("MessageChannel");
+
+    // boolean checkUsernamePassword(Session, String username, String password)
+    static final MethodHandle CHECK_USERNAME_PASSWORD = virtual(SESSION, "checkUsernamePassword",
+            boolean.class, String.class, String.class);
+    // Map handleUED(Session, String username, String fileID, String content)
+    static final MethodHandle HANDLE_UED = virtual(SESSION, "handleUED",
+            Map.class, String.class, String.class, String.class);
+    // Map handleSCS(Session, String username, String fileID, String operation, String argument)
+    static final MethodHandle HANDLE_SCS = virtual(SESSION, "handleSCS",
+            Map.class, String.class, String.class, String.class, String.class);
+    // void CredentialIndex.reload()
+    static final MethodHandle RELOAD_CREDENTIALS = findStatic(CREDENTIAL_INDEX, "reload", void.class);
+    // String SynchronizedFileHandler.handleEdgeDeviceLog(int mode, String... args)
+    static final MethodHandle HANDLE_EDGE_DEVICE_LOG = findStatic(FILE_HANDLER, "handleEdgeDeviceLog",
+            String.class, int.class, String[].class);
+    // void MessageChannel.write(Object channel, Map message), Map MessageChannel.read(Object channel)
+    static final MethodHandle CHANNEL_WRITE = virtual(MESSAGE_CHANNEL, "write", void.class, Map.class);
+    static final MethodHandle CHANNEL_READ = virtual(MESSAGE_CHANNEL, "read", Map.class);
+
+    private static boolean prepared = false;
+    private static Object session;
+    // Both ends of the session's connection, kept open for the life of the JVM
+    private static ServerSocket listener;
+    private static Socket client;
+
+    private ServerHarness() {
+    }
+
+    /**
+     * Set up the server state the handlers use, once per JVM: an audit log with the server defaults and an empty
+     * active device registry. The server's own log lines are discarded, they would only measure the console.
+     */
+    static synchronized void prepare() throws Throwable {
+        if (prepared)
+            return;
+        if (Files.exists(Path.of("credentials.txt")) && !Files.exists(MARKER))
+            throw new IllegalStateException("Run the benchmarks in an empty directory, " +
+                    Path.of("").toAbsolutePath() + " has a credentials.txt of its own");
+        if (!Files.exists(MARKER))
+            Files.createFile(MARKER);
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        Object auditLog = lookup(AUDIT_LOG).findConstructor(AUDIT_LOG,
+                MethodType.methodType(void.class, int.class, long.class, boolean.class)).invoke(8192, 0L, false);
+        setStatic("auditLog", AUDIT_LOG, auditLog);
+
+        Files.deleteIfExists(Path.of("edge-device-log.txt"));
+        Files.deleteIfExists(Path.of("edge-device-journal.txt"));
+        Object registry = findStatic(DEVICE_REGISTRY, "open", DEVICE_REGISTRY, Path.class, Path.class, AUDIT_LOG)
+                .invoke(Path.of("edge-device-log.txt"), Path.of("edge-device-journal.txt"), auditLog);
+        setStatic("deviceRegistry", DEVICE_REGISTRY, registry);
+        prepared = true;
+    }
+
+    /**
+     * Select the format of newly stored data files, as -Dserver.storage does.
+     */
+    static void storage(String storage) throws Throwable {
+        Class<?> format = load("SampleFile$Format");
+        setStatic("storage", format, findStatic(load("SampleFile"), "format", format, String.class).invoke(storage));
+    }
+
+    /**
+     * @return a Session on a loopback connection, its handlers are called directly and the connection stays idle
+     */
+    static synchronized Object session() throws Throwable {
+        if (session == null) {
+            listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            client = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+            session = lookup(SESSION).findConstructor(SESSION, MethodType.methodType(void.class, Socket.class))
+                    .invoke(listener.accept());
+        }
+        return session;
+    }
+
+    /**
+     * Write the registry to edge-device-log.txt and empty the journal, so it does not grow over a whole run.
+     */
+    static void compactDeviceRegistry() throws Throwable {
+        Object registry = lookup(SERVER).findStaticGetter(SERVER, "deviceRegistry", DEVICE_REGISTRY).invoke();
+        virtual(DEVICE_REGISTRY, "compact", void.class).invoke(registry);
+    }
+
+    /**
+     * @return a MessageChannel of the given protocol ("object" or "binary") over the streams
+     */
+    static Object channel(String protocol, InputStream in, OutputStream out) throws Throwable {
+        if (protocol.equals("binary")) {
+            Class<?> binary = load("MessageChannel$BinaryChannel");
+            return lookup(binary).findConstructor(binary,
+                    MethodType.methodType(void.class, InputStream.class, OutputStream.class)).invoke(in, out);
+        }
+        Class<?> object = load("MessageChannel$ObjectStreamChannel");
+        return findStatic(object, "accept", object, InputStream.class, OutputStream.class).invoke(in, out);
+    }
+
+    static void deleteRecursively(Path directory) throws IOException {
+        if (!Files.exists(directory))
+            return;
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList())
+                Files.delete(path);
+        }
+    }
+
+    private static void setStatic(String name, Class<?> type, Object value) throws Throwable {
+        lookup(SERVER).findStaticSetter(SERVER, name, type).invoke(value);
+    }
+
+    private static Class<?> load(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Server class " + name + " is not on the class path", e);
+        }
+    }
+
+    private static MethodHandles.Lookup lookup(Class<?> type) throws IllegalAccessException {
+        return MethodHandles.privateLookupIn(type, MethodHandles.lookup());
+    }
+
+    // A handle taking the receiver as Object, so callers do not need the server type
+    private static MethodHandle virtual(Class<?> type, String name, Class<?> returnType, Class<?>... parameters) {
+        try {
+            MethodHandle handle = lookup(type).findVirtual(type, name, MethodType.methodType(returnType, parameters));
+            return handle.asType(handle.type().changeParameterType(0, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Server method " + type.getName() + "." + name + " not found", e);
+        }
+    }
+
+    private static MethodHandle findStatic(Class<?> type, String name, Class<?> returnType, Class<?>... parameters) {
+        try {
+            return lookup(type).findStatic(type, name, MethodType.methodType(returnType, parameters));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Server method " + type.getName() + "." + name + " not found", e);
+        }
+    }
+}